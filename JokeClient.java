@@ -14,6 +14,11 @@ Compile java files using command-line instructions:
 > javac JokeClient.java
 > javac JokeClientAdmin.java
 
+Benchmarks (JMH, needs Maven) and the client store stress check are in bench/:
+> cd bench
+> mvn package
+> ./run.sh
+
 4. Precise examples / instructions to run this program:
 In separate shell windows, run the compiled files using command-line instructions
 below. Launch the files in any order.
@@ -22,16 +27,148 @@ JOKESERVER:
 > java JokeServer
 - For secondary, add 'secondary' as argument
 > java JokeServer secondary
+- To compile a large text catalog to the binary format that is memory-mapped
+> java JokeServer compile-catalog jokes.txt jokes.jcat
+- Server options are passed as system properties before the class name,
+e.g. > java -Djoke.executor=virtual JokeServer
+  joke.port         joke port (default 4545, 4546 for secondary)
+  joke.adminPort    admin port (default 5050, 5051 for secondary)
+  joke.admin.address  address the admin port listens on (default loopback
+                    only; e.g. 0.0.0.0 for JokeClientAdmin or joke.peers on
+                    other hosts, which can then reconfigure the server)
+  joke.peers        host:adminPort,... of other servers that share this
+                    server's mode; toggles and sets are sent to them
+  joke.peers.syncInterval  ms between resending the mode to peers so that
+                    every server converges (default 5000)
+  joke.cluster      host:storePort,... of every server (this one included)
+                    that shares client state; each client's cycles live on
+                    one server and the others forward its requests there
+  joke.storePort    port this server takes forwarded requests on (default
+                    joke.port + 1000)
+  joke.cluster.address  address the store port listens on (default loopback
+                    only; e.g. 0.0.0.0 when joke.cluster has other hosts,
+                    which can then advance any client's cycles)
+  joke.cluster.self  this server's joke.cluster entry, if not the one on
+                    joke.storePort
+  joke.cluster.timeout  ms to wait for another server (default 1000)
+  joke.cluster.retry  ms before an unreachable server is tried again; its
+                    clients are answered "Failed in attempt" meanwhile, so
+                    their cycles never restart elsewhere (default 5000)
+  joke.executor     pool (default) or virtual (one virtual thread per
+                    connection, Java 21+)
+  joke.workers      pool threads (default 4 per core, at least 8)
+  joke.queue        connections queued for the pool (default 256)
+  joke.backlog      connections the OS queues before the joke port accepts
+                    them, on either front end (default joke.queue)
+  joke.rejection    abort (default, client is told the server is busy) or
+                    callerruns (accept loop serves one request and waits)
+                    when the queue is full
+  joke.maxConnections  virtual-thread connections in flight (default 10000)
+  joke.frontend     blocking (default, one task per connection) or nio
+                    (Selector event loops, no thread per connection)
+  joke.eventLoops   nio event loop threads (default one per core)
+  joke.idleTimeout  ms a keep-alive connection may stay idle (default 5000)
+  joke.keepalive.max  pool threads keep-alive connections may hold (default
+                    three quarters of joke.workers); past it, and while
+                    connections are queued, a keep-alive connection is
+                    closed after the requests it sent at once
+  joke.maxBatch     most jokes or proverbs sent for one BATCH request
+                    (default 1000); a count below 1 gets one
+  joke.limit.connections  connections accepted and not yet closed, over
+                    which new ones are answered LIMITED without a thread
+                    (default 0, no limit)
+  joke.limit.address  new connections per second from one source address
+                    (default 0, no limit); joke.limit.address.burst allows
+                    more at once (default one second's worth)
+  joke.limit.client  requests per second for one uuid (default 0, no
+                    limit); joke.limit.client.burst allows more at once
+                    (default one second's worth)
+  joke.limit.slots  rate buckets per limit, shared by uuids or addresses
+                    that hash alike (default 65536)
+  joke.store        heap (default), offheap or mapped (off-heap, kept in a
+                    file so client cycles survive a restart)
+  joke.catalog      catalog file, text or compiled (default jokes.txt, or the
+                    built-in jokes and proverbs if there is no jokes.txt)
+  joke.catalog.reload  seconds between checks for a changed catalog file,
+                    which is then reloaded while serving (default 5, 0 never)
+  joke.deflate      true to compress every item once when the catalog is
+                    loaded, for clients that ask for compressed replies
+                    (default false; some 30 us an item at each load)
+  joke.deflate.dictionary  bytes of catalog text in the preset dictionary
+                    those replies are compressed with (default 8192, at
+                    most 32768); clients fetch it once per catalog
+  joke.store.capacity  most clients kept off the heap (default 1000000)
+  joke.store.categories  catalog categories each client has a cycle for off
+                    the heap (default the catalog's categories, at least 4)
+  joke.store.full   reject (default, request fails) or recycle (another
+                    client's record is reused) when the off-heap store is full
+  joke.store.file   mapped store file (default clients-PORT.dat)
+  joke.store.sync   request, batch (default) or shutdown: when the mapped
+                    store is forced to disk
+  joke.store.syncInterval  ms between batch syncs (default 1000)
+  joke.clients.max  most clients kept by the heap store, least recently
+                    used are evicted first (default 0, no limit)
+  joke.clients.ttl  seconds a client may be idle in the heap store before it
+                    is evicted and starts a new cycle (default 0, never)
+  joke.metricsPort  loopback port serving metrics in the Prometheus text
+                    format, e.g. > curl localhost:5060/metrics (default
+                    joke.adminPort + 10, 0 off)
+  joke.metrics.log  seconds between metrics snapshot lines (default 60,
+                    0 never)
+  joke.log.file     file log lines are appended to (default stdout); they
+                    are written by a thread of their own, in batches
+  joke.log.access   true to log a line per request with uuid, label, mode,
+                    node and latency (default false)
+  joke.log.buffer   log lines held before the writer catches up (default
+                    8192)
+  joke.log.overflow  drop (default, counted in the metrics) or block when
+                    the log buffer is full
+  joke.shutdown.timeout  seconds connections get to finish when the server
+                    shuts down (default 10)
+- Client options are passed the same way,
+e.g. > java -Djoke.keepalive=true JokeClient
+  joke.keepalive    true to send all requests over one open connection per
+                    server instead of one connection per joke (default false)
+  joke.balance      pinned (default, the server chosen with (s)), least
+                    (fewest requests in flight) or latency (faster of two
+                    random servers): which server each request goes to
+  joke.connectTimeout  ms to connect to a server (default 1000)
+  joke.readTimeout  ms to wait for a reply (default 5000)
+  joke.retries      other servers a request is tried on when one cannot be
+                    reached or closes the connection before answering
+                    (default 2); a request whose reply timed out or broke
+                    off is not sent again, since it may have been served
+  joke.cooldown     ms a failed server is avoided while others are up
+                    (default 5000)
+  joke.protocol     text (default), binary or deflate: requests and replies
+                    as length-prefixed binary frames, which servers recognise
+                    by their first byte (JokeClientAdmin takes it too);
+                    deflate also asks for replies compressed with the
+                    server's dictionary, if it was started with joke.deflate
+  joke.load.clients  run headless: simulate this many clients and report
+                    throughput and latency percentiles instead of prompting
+  joke.load.threads  requests in flight at once (default 64)
+  joke.load.rate    requests per second, 0 for as fast as possible (default)
+  joke.load.duration  seconds measured (default 10), after
+  joke.load.warmup  seconds not measured (default 2)
+  joke.load.batch   items per request, BATCH requests above 1 (default 1)
+  joke.load.seed    seed for client uuids and request order (default 1)
 JOKECLIENT:
 - For localhost, no arguments or one argument ('localhost' OR 127.0.0.1) to run
 > java JokeClient
 > java JokeClient localhost
 - For two servers, two IP addresses as arguments
 > java JokeClient localhost localhost
+- For any number of servers, host:port arguments
+> java -Djoke.balance=least JokeClient localhost:4545 localhost:4600 localhost:4601
+- Headless load test, e.g. 5000 clients at 2000 requests per second
+> java -Djoke.load.clients=5000 -Djoke.load.rate=2000 JokeClient localhost
 JOKECLIENTADMIN:
 - For one server, no arguments or one argument
 > java JokeClientAdmin
 > java JokeClientAdmin localhost
+- For servers on other admin ports, host:port arguments
+> java JokeClientAdmin localhost:5100 localhost:5101
 
 This was not tested across machines. It was tested for multiple servers that
 were both local. Therefore, it may run across machines when the Joke Client is
@@ -41,69 +178,99 @@ passed the IP address.
 - JokeServer.java
 - JokeClient.java
 - JokeClientAdmin.java
+- jokes.txt (optional) catalog of jokes, proverbs and any other categories,
+  one item per line: CATEGORY<TAB>LABEL<TAB>text
 
 5. Notes:
 - The client uuid is not really a universally unique identifier, I use a random
 int generator for the uuids in JokeClient. This could create a bug if two
 clients end up with the same uuid, though the chances are very low that this
 occurs.
-- The program is limited to 1 or 2 JokeServers running at the same time.
+- JokeClientAdmin knows 1 or 2 JokeServers at a time, JokeClient any
+number, failing over to the next one when a server is down. More servers
+can run on one host with joke.port and joke.adminPort, and share one mode
+with joke.peers. Started with the same joke.cluster, they also share client
+state, so a client that switches servers with (s) keeps its place.
 It was not tested across Internet connections, only locally. Therefore, it
 may not perform correctly when passed remote IP addresses as arguments.
+- Each JokeClientAdmin toggle moves the server to the next category of its
+catalog, JOKE to PROVERB and back for the default catalog. Typing
+'set NAME' (e.g. 'set proverb') sets the mode instead. With joke.peers,
+the new mode is sent to every peer; each change has a version number and
+the newest one wins.
+- Other JokeClientAdmin commands tune a running server: 'workers 16'
+resizes the worker pool, 'limit client 50' (or 'limit address RATE
+[BURST]', 'limit connections N') changes a limit, 'clients max 100000' and
+'clients ttl 600' bound the heap client store, 'reload' reloads the
+catalog, 'snapshot' writes the mapped client store to its file, 'stats'
+prints the metrics, 'shutdown [SECONDS]' stops the server (see below; only
+from its own host) and 'help' lists the commands. The admin port only acts
+on commands, so a connection that sends nothing changes nothing.
+- In JokeClient, typing a number n instead of pressing enter asks for the
+next n jokes or proverbs in a single BATCH request.
 - When JokeClient or JokeClientAdmin switch servers, the server name and IP
 address are displayed,
 e.g. 'Now communicating with: localhost/127.0.0.1, port 5051'
-- JokeServer runs continuously until shell is terminated.
+- JokeServer runs until it gets SIGTERM, Ctrl-C or the admin 'shutdown'
+command. It then stops accepting connections, finishes the requests it has
+(closing keep-alive connections between requests, so JokeClients move to
+another server without an error) for up to joke.shutdown.timeout seconds,
+and writes its last metrics line, client store and log before it exits,
+so servers can be restarted one at a time without clients noticing.
 
 ----------------------------------------------------------*/
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.*;
 import java.lang.Math;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
 
 public class JokeClient {
   public static void main(String args[]) {
 
-    // Variables to hold server names and InetAddress objects to be able to
-    // connect to multiple servers and switch between servers on command.
-    String serverOne = null;
-    String serverTwo = null;
-    int portOne = 4545;
-    int portTwo = 4546;
+    // List of servers to send requests to. Each argument is a server name or
+    // IP address, optionally with its port (host:port); without a port the
+    // first server is on 4545, the second on 4546 and so on.
+    List<Endpoint> endpoints = new ArrayList<Endpoint>();
 
     // If server name is not provided as the first argument when JokeClient is
     // launched in console, set the server name to "localhost".
-
     try {
       if (args.length < 1) {
-        serverOne = "localhost";
-      }
-      // If one or two arguments are provided when JokeClient is launched in the
-      // console, set the server names to the corresponding variables.
-      else {
-        // Assign the first argument to serverOne variable, and perform
-        // InetAddress lookup based on the server name input to display IP addresses.
-        serverOne = args[0];
-      }
-      System.out.println("Server one: " + InetAddress.getByName(serverOne) + ", port " + portOne);
-      if (args.length >= 2) {
-        // Assign the second argument to serverTwo variable, and perform
-        // InetAddress lookup based on the server name input.
-        // try {
-        serverTwo = args[1];
-        System.out.println("Server two: " + InetAddress.getByName(serverTwo) + ", port " + portTwo);
-        // } catch(UnknownHostException ex) {
-        // If server lookup of hostname or IP address provided by user/client
-        // fails, display error message in client console.
-        // System.out.println("Failed in attempt to look up " + name);
-        // }
+        endpoints.add(new Endpoint("localhost", 4545));
+      }
+      // If arguments are provided when JokeClient is launched in the console,
+      // add a server for each of them.
+      for (int i = 0; i < args.length; i++) {
+        endpoints.add(Endpoint.parse(args[i], 4545 + i));
+      }
+      // Perform InetAddress lookup based on the server names input to display
+      // IP addresses.
+      for (int i = 0; i < endpoints.size(); i++) {
+        Endpoint endpoint = endpoints.get(i);
+        System.out.println("Server " + (i < NUMBERS.length ? NUMBERS[i] : "" + (i + 1)) + ": "
+          + InetAddress.getByName(endpoint.host) + ", port " + endpoint.port);
       }
     } catch(UnknownHostException ex) {
       // If server lookup of hostname or IP address provided by user/client
       // fails, display error message in client console.
       System.out.println("Failed in attempt to look up server.");
     }
+    Balancer balancer = Balancer.fromProperties(endpoints);
+
+    // Headless mode simulates many clients instead of prompting, see
+    // LoadGenerator
+    if (Integer.getInteger("joke.load.clients", 0) > 0) {
+      LoadGenerator.fromProperties(balancer).run();
+      return;
+    }
+    balancer.verbose = true;
+    connections = new KeepAliveConnection[endpoints.size()];
 
     // Prompt the user to enter a name.
     String name = "";
@@ -120,37 +287,36 @@ public class JokeClient {
       name = in.readLine();
     } catch(IOException ioe) { ioe.printStackTrace(); }
     String input;
-    String server = serverOne;
-    int port = portOne;
     try {
       do {
-        System.out.print("Press enter to receive a joke or proverb, (s) to switch servers, (quit) to end: ");
+        System.out.print("Press enter to receive a joke or proverb, a number for that many, (s) to switch servers, (quit) to end: ");
         input = in.readLine();
         // If user presses enter with no input, client calls getJokeOrProverb and
-        // passes in uuid, name, server and port to communicate with JokeServer
+        // passes in uuid, name and the servers to communicate with JokeServer
         // and receive a joke or a proverb.
         if(input.isEmpty()) {
-          getJokeOrProverb(uuid, name, server, port);
+          getJokeOrProverb(uuid, name, balancer);
         }
-        // If user inputs 's', JokeClient checks for secondary server. If there
-        // is a secondary server, JokeClient switches connection.
+        // If user enters a number, client asks for that many jokes or
+        // proverbs in one batch request.
+        else if(input.matches("\\d+")) {
+          // Servers cut a batch to joke.maxBatch, so more than nine digits
+          // need not fit in an int
+          getJokesOrProverbs(uuid, name, balancer,
+            input.length() > 9 ? Integer.MAX_VALUE : Integer.parseInt(input));
+        }
+        // If user inputs 's', JokeClient switches to the next server, and
+        // back to the first one after the last.
         if (input.equals("s")) {
-          if(serverTwo == null) {
+          if(endpoints.size() < 2) {
             System.out.println("No secondary server being used.");
           }
+          else if(!balancer.policy.equals("pinned")) {
+            System.out.println("Requests are balanced over all servers.");
+          }
           else {
-            if(port == portOne) {
-              server = serverTwo;
-              port = portTwo;
-              System.out.println("Now communicating with: " + InetAddress.getByName(serverTwo) + ", port " + portTwo);
-            }
-            // If JokeClient was connected to secondary server, connects back
-            // to first server.
-            else {
-              server = serverOne;
-              port = portOne;
-              System.out.println("Now communicating with: " + InetAddress.getByName(serverOne) + ", port " + portOne);
-            }
+            Endpoint endpoint = balancer.switchServer();
+            System.out.println("Now communicating with: " + InetAddress.getByName(endpoint.host) + ", port " + endpoint.port);
           }
         }
       }
@@ -165,27 +331,56 @@ public class JokeClient {
     } catch (IOException ioe) { ioe.printStackTrace(); }
   }
 
+  static final String[] NUMBERS = { "one", "two" };
+
+  // Set with -Djoke.keepalive=true to send every request over one connection
+  // per server instead of opening a new socket for each joke or proverb.
+  static final boolean KEEP_ALIVE = Boolean.getBoolean("joke.keepalive");
+  // Set with -Djoke.protocol=binary to send requests as binary frames (see
+  // KeepAliveConnection) instead of text lines, or with deflate to also have
+  // replies compressed.
+  static final String PROTOCOL = System.getProperty("joke.protocol", "text");
+  static final boolean DEFLATE = PROTOCOL.equals("deflate");
+  static final boolean BINARY = DEFLATE || PROTOCOL.equals("binary");
+  // Open keep-alive connection to each server, by endpoint index
+  static KeepAliveConnection[] connections;
+
   // Method to make connection with JokeServer, send data to the server to store
   // the client's state, and receives a joke or proverb to display to the console.
-  static void getJokeOrProverb(int uuid, String name, String server, int port) {
-    Socket socket;
-    BufferedReader fromServer;
-    PrintStream toServer;
-    String[] textFromServer = new String[2];
-
+  // The balancer picks the server and tries another one if it fails.
+  static void getJokeOrProverb(final int uuid, final String name, final Balancer balancer) {
     try {
-      /* Opens the connection to the server through a socket, using the server
-      name passed in as parameter, serverName, and port number (hardcoded) */
-      // Display server name and port number.
-      socket = new Socket(InetAddress.getByName(server), port);
+      String[] textFromServer = balancer.execute(new Balancer.Call<String[]>() {
+        public String[] call(Endpoint endpoint) throws IOException {
+          return KEEP_ALIVE ? requestKeepAlive(connections, endpoint, uuid, name, balancer)
+            : request(endpoint, uuid, name, balancer);
+        }
+      });
+      System.out.println(textFromServer[0] + " " + name + ": " + textFromServer[1]);
+    } catch(IOException x) {
+      System.out.println("Socket error: " + x.getMessage());
+    }
+  }
 
+  // Sends one request on a new connection to endpoint and returns the label
+  // line and the text line.
+  static String[] request(Endpoint endpoint, int uuid, String name, Balancer balancer)
+  throws IOException {
+    /* Opens the connection to the server through a socket, using the server
+    name and port number of the endpoint */
+    Socket socket = balancer.connect(endpoint);
+    try {
+      // A binary connection carries one request as well as many
+      if (BINARY) {
+        return new KeepAliveConnection(socket, endpoint.host, endpoint.port).request(uuid, name);
+      }
       // Assigns a BufferedReader variable, 'fromServer', to read/buffer
       // character input data from the server through the socket.
-      fromServer = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+      BufferedReader fromServer = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 
       // Assigns PrintStream variable, 'toServer', to send data to the server
       // through the socket
-      toServer = new PrintStream(socket.getOutputStream());
+      PrintStream toServer = new PrintStream(socket.getOutputStream());
 
       // Writes client UUID and name entered to the PrintStream to send data
       // through the socket.
@@ -194,21 +389,878 @@ public class JokeClient {
 
       toServer.flush();
 
-      // For loop reads and displays JOKE OR PROVERB from the server that was read
-      // into fromServer variable through the socket input stream.
+      // Reads the JOKE OR PROVERB from the server through the socket input
+      // stream.
+      return KeepAliveConnection.reply(fromServer);
+    } finally {
+      // Closes this socket's connection
+      socket.close();
+    }
+  }
 
-      for(int i = 0; i < 2; i++) {
-        // Reads line of text/data from the server through the socket.
-        textFromServer[i] = fromServer.readLine();
+  // Asks the servers for the next count jokes or proverbs in one BATCH
+  // request and displays them, over the keep-alive connection if enabled.
+  static void getJokesOrProverbs(final int uuid, final String name, final Balancer balancer,
+  final int count) {
+    try {
+      String[][] replies = balancer.execute(new Balancer.Call<String[][]>() {
+        public String[][] call(Endpoint endpoint) throws IOException {
+          return KEEP_ALIVE ? batchKeepAlive(connections, endpoint, uuid, name, count, balancer)
+            : batch(endpoint, uuid, name, count, balancer);
+        }
+      });
+      for (String[] textFromServer : replies) {
+        System.out.println(textFromServer[0] + " " + name + ": " + textFromServer[1]);
       }
-      System.out.println(textFromServer[0] + " " + name + ": " + textFromServer[1]);
-
+    } catch(IOException x) {
+      System.out.println("Socket error: " + x.getMessage());
+    }
+  }
 
-      // Closes this socket's connection
+  // Sends one BATCH request on a new connection to endpoint.
+  static String[][] batch(Endpoint endpoint, int uuid, String name, int count,
+  Balancer balancer) throws IOException {
+    Socket socket = balancer.connect(endpoint);
+    try {
+      if (BINARY) {
+        return new KeepAliveConnection(socket, endpoint.host, endpoint.port)
+          .batch(uuid, name, count);
+      }
+      BufferedReader fromServer = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+      PrintStream toServer = new PrintStream(socket.getOutputStream());
+      return KeepAliveConnection.batch(toServer, fromServer, uuid, name, count);
+    } finally {
       socket.close();
+    }
+  }
+
+  // Sends the request over the endpoint's open keep-alive connection in
+  // connections, opening one first if needed. If the server has closed an
+  // idle connection, the request is retried once on a new connection before
+  // the endpoint counts as failed; a reply that was lost is not (see
+  // Balancer).
+  static String[] requestKeepAlive(KeepAliveConnection[] connections, Endpoint endpoint,
+  int uuid, String name, Balancer balancer) throws IOException {
+    boolean reused = connections[endpoint.index] != null;
+    try {
+      return keepAlive(connections, endpoint, balancer).request(uuid, name);
     } catch(IOException x) {
-      System.out.println("Socket error.");
-      x.printStackTrace();
+      close(connections, endpoint);
+      if (!reused || x instanceof ReplyLostException) {
+        throw x;
+      }
+    }
+    try {
+      return keepAlive(connections, endpoint, balancer).request(uuid, name);
+    } catch(IOException x) {
+      close(connections, endpoint);
+      throw x;
+    }
+  }
+
+  // Sends a BATCH request over the endpoint's keep-alive connection, retried
+  // once like requestKeepAlive.
+  static String[][] batchKeepAlive(KeepAliveConnection[] connections, Endpoint endpoint,
+  int uuid, String name, int count, Balancer balancer) throws IOException {
+    boolean reused = connections[endpoint.index] != null;
+    try {
+      return keepAlive(connections, endpoint, balancer).batch(uuid, name, count);
+    } catch(IOException x) {
+      close(connections, endpoint);
+      if (!reused || x instanceof ReplyLostException) {
+        throw x;
+      }
+    }
+    try {
+      return keepAlive(connections, endpoint, balancer).batch(uuid, name, count);
+    } catch(IOException x) {
+      close(connections, endpoint);
+      throw x;
+    }
+  }
+
+  // The endpoint's keep-alive connection in connections, opened if there is
+  // none.
+  static KeepAliveConnection keepAlive(KeepAliveConnection[] connections, Endpoint endpoint,
+  Balancer balancer) throws IOException {
+    if (connections[endpoint.index] == null) {
+      connections[endpoint.index] = new KeepAliveConnection(balancer.connect(endpoint),
+        endpoint.host, endpoint.port);
+    }
+    return connections[endpoint.index];
+  }
+
+  static void close(KeepAliveConnection[] connections, Endpoint endpoint) {
+    if (connections[endpoint.index] != null) {
+      connections[endpoint.index].close();
+      connections[endpoint.index] = null;
+    }
+  }
+}
+
+// Endpoint is one JokeServer the client can send requests to, with what the
+// client has learned about it: how many requests are in flight to it, its
+// recent latency and whether it failed recently.
+class Endpoint {
+  final String host;
+  final int port;
+  final AtomicInteger outstanding = new AtomicInteger();
+  volatile double latency;            // moving average in ms, 0 until measured
+  volatile long downUntil;            // not chosen before this time if others are up
+  int index;                          // position in the balancer's list
+
+  Endpoint(String host, int port) {
+    this.host = host;
+    this.port = port;
+  }
+
+  // Parses host or host:port.
+  static Endpoint parse(String arg, int defaultPort) {
+    int colon = arg.lastIndexOf(':');
+    if (colon < 0) {
+      return new Endpoint(arg, defaultPort);
+    }
+    return new Endpoint(arg.substring(0, colon), Integer.parseInt(arg.substring(colon + 1)));
+  }
+
+  boolean isUp(long now) {
+    return now >= downUntil;
+  }
+
+  // Folds one reply time into the moving average.
+  void record(long nanos) {
+    double ms = nanos / 1e6;
+    double average = latency;
+    latency = average == 0 ? ms : average * 0.8 + ms * 0.2;
+  }
+
+  public String toString() {
+    return host + ":" + port;
+  }
+}
+
+// Balancer chooses the server for each request and fails over to another
+// one when a server cannot be reached or closes the connection before
+// answering. A request is never sent again once the server may have served
+// it, when the reply timed out or broke off (ReplyLostException): the
+// server has taken the next item of the client's cycle, and asking again
+// would skip it. The policy is set with -Djoke.balance:
+//  - pinned (default): the server chosen with (s); others are used only
+//    when it fails
+//  - least: the server with the fewest requests in flight, then the lowest
+//    recent latency
+//  - latency: the better of two servers picked at random, by recent latency
+//    times requests in flight ("power of two choices"), which spreads load
+//    toward fast servers without sending everything to one
+// A server that fails is avoided for joke.cooldown milliseconds while any
+// other is up. Each request may be tried on up to joke.retries more servers.
+// The balancer is safe to share between threads.
+class Balancer {
+  final Endpoint[] endpoints;
+  final String policy;
+  final int connectTimeout;
+  final int readTimeout;
+  final int retries;
+  final long cooldown;
+  volatile int preferred;           // pinned server, moved by (s)
+  boolean verbose;                  // print each failover
+
+  // Counters for reports
+  final AtomicLong failures = new AtomicLong();
+
+  interface Call<T> {
+    T call(Endpoint endpoint) throws IOException;
+  }
+
+  Balancer(List<Endpoint> endpoints, String policy, int connectTimeout, int readTimeout,
+  int retries, long cooldown) {
+    this.endpoints = endpoints.toArray(new Endpoint[0]);
+    for (int i = 0; i < this.endpoints.length; i++) {
+      this.endpoints[i].index = i;
+    }
+    this.policy = policy;
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    this.retries = retries;
+    this.cooldown = cooldown;
+  }
+
+  // Builds the balancer from system properties:
+  //  joke.balance         pinned (default), least or latency
+  //  joke.connectTimeout  ms to connect to a server (default 1000)
+  //  joke.readTimeout     ms to wait for a reply (default 5000)
+  //  joke.retries         other servers tried when one fails (default 2)
+  //  joke.cooldown        ms a failed server is avoided (default 5000)
+  static Balancer fromProperties(List<Endpoint> endpoints) {
+    return new Balancer(endpoints,
+      System.getProperty("joke.balance", "pinned"),
+      Integer.getInteger("joke.connectTimeout", 1000),
+      Integer.getInteger("joke.readTimeout", 5000),
+      Integer.getInteger("joke.retries", 2),
+      Long.getLong("joke.cooldown", 5000L));
+  }
+
+  // Runs call on a chosen server, and on others in turn if it fails, until
+  // one succeeds or the retries are used up.
+  <T> T execute(Call<T> call) throws IOException {
+    boolean[] tried = new boolean[endpoints.length];
+    IOException failure = null;
+    for (int attempt = 0; attempt <= retries; attempt++) {
+      int i = choose(tried);
+      if (i < 0) {
+        break;
+      }
+      tried[i] = true;
+      Endpoint endpoint = endpoints[i];
+      endpoint.outstanding.incrementAndGet();
+      long start = System.nanoTime();
+      try {
+        T result = call.call(endpoint);
+        endpoint.record(System.nanoTime() - start);
+        endpoint.downUntil = 0;
+        return result;
+      } catch (IOException ioe) {
+        failure = ioe;
+        failures.incrementAndGet();
+        endpoint.downUntil = System.currentTimeMillis() + cooldown;
+        if (verbose) {
+          System.out.println("Server " + endpoint + " failed: " + ioe.getMessage());
+        }
+        if (ioe instanceof ReplyLostException) {
+          throw ioe;
+        }
+      } finally {
+        endpoint.outstanding.decrementAndGet();
+      }
+    }
+    throw failure != null ? failure : new IOException("No server to try");
+  }
+
+  // Index of the server for the next attempt, among those not tried yet:
+  // one that is up if there is any, otherwise one that failed recently.
+  // Returns -1 when every server has been tried.
+  int choose(boolean[] tried) {
+    long now = System.currentTimeMillis();
+    int chosen = choose(tried, now, true);
+    return chosen >= 0 ? chosen : choose(tried, now, false);
+  }
+
+  int choose(boolean[] tried, long now, boolean upOnly) {
+    int n = endpoints.length;
+    if (policy.equals("least") || policy.equals("latency")) {
+      // Start at a random server so that ties are spread out
+      int offset = ThreadLocalRandom.current().nextInt(n);
+      int best = -1;
+      int second = -1;
+      for (int k = 0; k < n; k++) {
+        int i = (offset + k) % n;
+        if (tried[i] || (upOnly && !endpoints[i].isUp(now))) {
+          continue;
+        }
+        if (policy.equals("latency")) {
+          // The first two candidates from a random start are a random pair
+          if (best < 0) {
+            best = i;
+          } else if (second < 0) {
+            second = i;
+            break;
+          }
+        } else if (best < 0 || less(endpoints[i], endpoints[best])) {
+          best = i;
+        }
+      }
+      if (second >= 0 && score(endpoints[second]) < score(endpoints[best])) {
+        best = second;
+      }
+      return best;
+    }
+    for (int k = 0; k < n; k++) {
+      int i = (preferred + k) % n;
+      if (!tried[i] && (!upOnly || endpoints[i].isUp(now))) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // True if a is the better choice for the least policy.
+  static boolean less(Endpoint a, Endpoint b) {
+    int byOutstanding = a.outstanding.get() - b.outstanding.get();
+    return byOutstanding < 0 || (byOutstanding == 0 && a.latency < b.latency);
+  }
+
+  // Expected wait on a server for the latency policy. Unmeasured servers
+  // score 0 so that each one is tried early.
+  static double score(Endpoint endpoint) {
+    return endpoint.latency * (endpoint.outstanding.get() + 1);
+  }
+
+  // Pins the next server, for the (s) command.
+  Endpoint switchServer() {
+    preferred = (preferred + 1) % endpoints.length;
+    return endpoints[preferred];
+  }
+
+  // Opens a socket to endpoint with the connect and read timeouts.
+  Socket connect(Endpoint endpoint) throws IOException {
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(endpoint.host, endpoint.port), connectTimeout);
+      socket.setSoTimeout(readTimeout);
+      return socket;
+    } catch (IOException ioe) {
+      socket.close();
+      throw ioe;
+    }
+  }
+}
+
+// LoadGenerator is JokeClient's headless mode: instead of prompting, it
+// simulates many clients, each with its own uuid, sending requests through
+// the Balancer from a number of threads, and reports throughput and latency.
+// It is started with -Djoke.load.clients=N and set with:
+//  joke.load.clients      simulated clients (distinct uuids)
+//  joke.load.threads      requests in flight at once (default 64)
+//  joke.load.rate         requests per second for all threads together; 0
+//                         (default) sends as fast as replies come back
+//  joke.load.duration     seconds measured (default 10)
+//  joke.load.warmup       seconds run before measuring (default 2)
+//  joke.load.batch        items per request; above 1 sends BATCH requests
+//                         (default 1)
+//  joke.load.seed         seed for the uuids and the order clients send in
+//                         (default 1), so runs can be repeated exactly
+// At a fixed rate (open loop) each request has a scheduled start, and its
+// latency is measured from then, not from when a thread got to send it, so
+// a server that stalls is charged for the requests that queued up behind
+// the stall instead of hiding them. Replies that are missing, BUSY, LIMITED
+// or a "Failed in attempt" line count as errors; LIMITED ones are also
+// reported on their own, since they mean the load hit the server's limits.
+class LoadGenerator {
+  static final int SERVED = 0;   // results of one request, see Sender.send
+  static final int FAILED = 1;
+  static final int LIMITED = 2;
+
+  final Balancer balancer;
+  final int[] uuids;
+  final int threads;
+  final double rate;
+  final long duration;           // ns
+  final long warmup;             // ns
+  final int batch;
+  final long seed;
+
+  final AtomicLong slots = new AtomicLong();   // next scheduled request, open loop
+  long start;                                  // nanoTime of the first request
+  long end;                                    // nanoTime after which no request starts
+
+  LoadGenerator(Balancer balancer, int clients, int threads, double rate, int seconds,
+  int warmupSeconds, int batch, long seed) {
+    this.balancer = balancer;
+    this.threads = threads;
+    this.rate = rate;
+    this.duration = seconds * 1000000000L;
+    this.warmup = warmupSeconds * 1000000000L;
+    this.batch = batch;
+    this.seed = seed;
+    Random random = new Random(seed);
+    uuids = new int[clients];
+    for (int i = 0; i < clients; i++) {
+      uuids[i] = random.nextInt(2147483646);
+    }
+  }
+
+  static LoadGenerator fromProperties(Balancer balancer) {
+    return new LoadGenerator(balancer,
+      Integer.getInteger("joke.load.clients"),
+      Integer.getInteger("joke.load.threads", 64),
+      Double.parseDouble(System.getProperty("joke.load.rate", "0")),
+      Integer.getInteger("joke.load.duration", 10),
+      Integer.getInteger("joke.load.warmup", 2),
+      Integer.getInteger("joke.load.batch", 1),
+      Long.getLong("joke.load.seed", 1L));
+  }
+
+  // Runs the load and prints the report.
+  void run() {
+    System.out.println("Load: " + uuids.length + " clients, " + threads + " threads, "
+      + (rate > 0 ? rate + " requests/s" : "closed loop") + ", " + duration / 1000000000L
+      + " s after " + warmup / 1000000000L + " s warmup, seed " + seed
+      + (batch > 1 ? ", BATCH " + batch : "") + (JokeClient.KEEP_ALIVE ? ", keep-alive" : "")
+      + (JokeClient.BINARY ? ", " + JokeClient.PROTOCOL : ""));
+    Sender[] senders = new Sender[threads];
+    Thread[] running = new Thread[threads];
+    start = System.nanoTime();
+    end = start + warmup + duration;
+    for (int i = 0; i < threads; i++) {
+      senders[i] = new Sender(new Random(seed + 1 + i));
+      running[i] = new Thread(senders[i], "joke-load-" + i);
+      running[i].start();
     }
+    LatencyHistogram latencies = new LatencyHistogram();
+    long errors = 0;
+    long limited = 0;
+    for (int i = 0; i < threads; i++) {
+      try {
+        running[i].join();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      latencies.add(senders[i].latencies);
+      errors += senders[i].errors;
+      limited += senders[i].limited;
+    }
+    double seconds = duration / 1e9;
+    System.out.println("Requests " + (latencies.count() + errors) + ", errors " + errors
+      + " (" + limited + " limited), failovers " + balancer.failures.get());
+    System.out.printf("Throughput %.1f requests/s%n", latencies.count() / seconds);
+    System.out.printf("Latency ms  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+      latencies.percentile(50) / 1000.0, latencies.percentile(90) / 1000.0,
+      latencies.percentile(99) / 1000.0, latencies.percentile(99.9) / 1000.0,
+      latencies.max() / 1000.0);
+  }
+
+  // One thread of requests, with its own connections, random sequence and
+  // histogram, so threads share nothing but the balancer.
+  final class Sender implements Runnable {
+    final Random random;
+    final KeepAliveConnection[] connections = new KeepAliveConnection[balancer.endpoints.length];
+    final LatencyHistogram latencies = new LatencyHistogram();
+    long errors;
+    long limited;                // of the errors, requests answered LIMITED
+
+    Sender(Random random) {
+      this.random = random;
+    }
+
+    public void run() {
+      long measureFrom = start + warmup;
+      while (true) {
+        long scheduled;
+        if (rate > 0) {
+          scheduled = start + (long) (slots.getAndIncrement() * 1e9 / rate);
+          if (scheduled >= end) {
+            break;
+          }
+          long wait;
+          while ((wait = scheduled - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+          }
+        } else {
+          scheduled = System.nanoTime();
+          if (scheduled >= end) {
+            break;
+          }
+        }
+        int result = send(uuids[random.nextInt(uuids.length)]);
+        long latency = System.nanoTime() - scheduled;
+        if (scheduled >= measureFrom) {
+          if (result == SERVED) {
+            latencies.record(latency / 1000);
+          } else {
+            errors++;
+            if (result == LIMITED) {
+              limited++;
+            }
+          }
+        }
+      }
+      for (KeepAliveConnection connection : connections) {
+        if (connection != null) {
+          connection.close();
+        }
+      }
+    }
+
+    // Sends one request for the client and checks the replies: SERVED,
+    // FAILED, or LIMITED if the server turned it away at a limit.
+    int send(final int uuid) {
+      try {
+        String[][] replies = balancer.execute(new Balancer.Call<String[][]>() {
+          public String[][] call(Endpoint endpoint) throws IOException {
+            if (batch > 1) {
+              return JokeClient.KEEP_ALIVE
+                ? JokeClient.batchKeepAlive(connections, endpoint, uuid, "load", batch, balancer)
+                : JokeClient.batch(endpoint, uuid, "load", batch, balancer);
+            }
+            return new String[][] { JokeClient.KEEP_ALIVE
+              ? JokeClient.requestKeepAlive(connections, endpoint, uuid, "load", balancer)
+              : JokeClient.request(endpoint, uuid, "load", balancer) };
+          }
+        });
+        for (String[] reply : replies) {
+          if (reply[0].equals("LIMITED")) {
+            return LIMITED;
+          }
+          if (reply[0].equals("BUSY") || reply[1].startsWith("Failed in attempt")) {
+            return FAILED;
+          }
+        }
+        return replies.length == Math.max(batch, 1) ? SERVED : FAILED;
+      } catch (IOException ioe) {
+        return FAILED;
+      }
+    }
+  }
+}
+
+// LatencyHistogram counts values (microseconds here) in buckets whose width
+// grows with the value, as HdrHistogram does: values below 128 have a bucket
+// each, and above that every power of two is split into 64 buckets, so any
+// value is recorded to within 1.6% in a fixed 58 KB of counts, from
+// microseconds to hours. Percentiles are read back as the highest value of
+// the bucket they fall in. Not thread-safe; use one per thread and add them.
+class LatencyHistogram {
+  static final int SUB_BITS = 7;
+  static final int SUB_COUNT = 1 << SUB_BITS;
+
+  final long[] counts = new long[(64 - SUB_BITS + 1) * SUB_COUNT];
+  long count;
+  long max;
+
+  void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts[index(value)]++;
+    count++;
+    max = Math.max(max, value);
+  }
+
+  static int index(long value) {
+    if (value < SUB_COUNT) {
+      return (int) value;
+    }
+    int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+    return (shift << SUB_BITS) + (int) (value >>> shift);
+  }
+
+  // Highest value that is recorded in bucket i.
+  static long highest(int i) {
+    if (i < SUB_COUNT) {
+      return i;
+    }
+    int shift = i >>> SUB_BITS;
+    long sub = i & (SUB_COUNT - 1);
+    return ((sub + 1) << shift) - 1;
+  }
+
+  void add(LatencyHistogram other) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    count += other.count;
+    max = Math.max(max, other.max);
+  }
+
+  long count() {
+    return count;
+  }
+
+  long max() {
+    return max;
+  }
+
+  // Value below which the given percent of the recorded values fall.
+  long percentile(double percent) {
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(count * percent / 100));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(highest(i), max);
+      }
+    }
+    return max;
+  }
+}
+
+// KeepAliveConnection holds one socket to a JokeServer that stays open for
+// many requests. It announces itself with a KEEPALIVE line, then each request
+// is the usual uuid and name lines and each reply the usual two lines.
+//
+// With joke.protocol=binary it sends the binary protocol's magic byte
+// instead, and then frames: a 4-byte length, then for a request the uuid
+// (int), the number of items (unsigned short) and the name, and for each
+// reply the category (byte), the replies still to come (unsigned short),
+// the item (int) and the label and text lines.
+//
+// With joke.protocol=deflate it sends the other magic byte and the id of
+// the last dictionary it was sent, and reply bodies are zlib streams
+// compressed with that dictionary. A reply frame of category 255 carries
+// a new dictionary, which is kept for later connections; if its id is 0
+// the bodies that follow are plain.
+class KeepAliveConnection {
+  static final int MAGIC = 0xB7;
+  static final int DEFLATE_MAGIC = 0xB8;
+  static final int DICTIONARY = 255;
+  static final int MAX_REPLY = 1 << 20;     // longest reply frame accepted
+  static final Charset UTF8 = Charset.forName("UTF-8");
+  // Dictionaries sent by servers, by id, and the id of the last one
+  static final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<Integer, byte[]>();
+  static volatile int lastDictionary;
+
+  final String server;
+  final int port;
+  final Socket socket;
+  final BufferedReader fromServer;
+  final PrintStream toServer;
+  final DataInputStream frames;       // binary replies, null for text
+  final DataOutputStream requests;    // binary requests, null for text
+  final Inflater inflater;            // compressed replies, null otherwise
+  int dictionary;                     // id replies are compressed with, 0 for plain
+
+  KeepAliveConnection(String server, int port) throws IOException {
+    this(new Socket(InetAddress.getByName(server), port), server, port);
+  }
+
+  // Uses a socket that is already connected to server.
+  KeepAliveConnection(Socket socket, String server, int port) throws IOException {
+    this.server = server;
+    this.port = port;
+    this.socket = socket;
+    socket.setTcpNoDelay(true);
+    if (JokeClient.BINARY) {
+      fromServer = null;
+      toServer = null;
+      frames = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      requests = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      if (JokeClient.DEFLATE) {
+        inflater = new Inflater();
+        dictionary = lastDictionary;
+        requests.write(DEFLATE_MAGIC);
+        requests.writeInt(dictionary);
+      } else {
+        inflater = null;
+        requests.write(MAGIC);
+      }
+      return;
+    }
+    frames = null;
+    requests = null;
+    inflater = null;
+    fromServer = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    toServer = new PrintStream(new BufferedOutputStream(socket.getOutputStream()));
+    toServer.println("KEEPALIVE");
+  }
+
+  // Sends one request and returns the label line and the text line.
+  String[] request(int uuid, String name) throws IOException {
+    if (requests != null) {
+      sendFrame(uuid, name, 1);
+      requests.flush();
+      return readFrames()[0];
+    }
+    toServer.println(uuid);
+    toServer.println(name);
+    toServer.flush();
+    if (toServer.checkError()) {
+      throw new IOException("Failed to send request to " + server + ", port " + port);
+    }
+    return reply(fromServer);
+  }
+
+  // Sends one BATCH request for count jokes or proverbs on this connection.
+  String[][] batch(int uuid, String name, int count) throws IOException {
+    if (requests != null) {
+      sendFrame(uuid, name, Math.min(count, 0xFFFF));
+      requests.flush();
+      return readFrames();
+    }
+    return batch(toServer, fromServer, uuid, name, count);
+  }
+
+  // Writes one binary request frame for count items.
+  void sendFrame(int uuid, String name, int count) throws IOException {
+    byte[] bytes = name.getBytes(UTF8);
+    requests.writeInt(6 + bytes.length);
+    requests.writeInt(uuid);
+    requests.writeShort(count);
+    requests.write(bytes);
+  }
+
+  // Reads the reply frames of one binary request, up to the one with no
+  // more to come, as label and text lines.
+  String[][] readFrames() throws IOException {
+    awaitReply(frames);
+    try {
+      return readReplyFrames();
+    } catch (IOException x) {
+      throw lost(x);
+    }
+  }
+
+  String[][] readReplyFrames() throws IOException {
+    List<String[]> replies = new ArrayList<String[]>();
+    int remaining;
+    do {
+      int length = frames.readInt();
+      if (length < 7 || length > MAX_REPLY) {
+        throw new IOException("Unexpected reply from " + server + ", port " + port);
+      }
+      int category = frames.readUnsignedByte();
+      remaining = frames.readUnsignedShort();
+      int item = frames.readInt();
+      byte[] body = new byte[length - 7];
+      frames.readFully(body);
+      if (category == DICTIONARY) {
+        if (item != 0) {
+          dictionaries.put(item, body);
+        }
+        dictionary = lastDictionary = item;
+        remaining = 1;                       // the replies are still to come
+        continue;
+      }
+      if (dictionary != 0 && item >= 0) {
+        body = inflate(body);
+      }
+      String text = new String(body, UTF8);
+      int newline = text.indexOf('\n');
+      replies.add(newline < 0 ? new String[] { text, "" } : new String[] {
+        text.substring(0, newline), text.substring(newline + 1).replace("\n", "") });
+    } while (remaining > 0);
+    return replies.toArray(new String[replies.size()][]);
+  }
+
+  // Decompresses a reply body, with the dictionary its zlib header names.
+  byte[] inflate(byte[] body) throws IOException {
+    inflater.reset();
+    inflater.setInput(body);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+    byte[] chunk = new byte[512];
+    try {
+      while (!inflater.finished()) {
+        int n = inflater.inflate(chunk);
+        if (n > 0) {
+          out.write(chunk, 0, n);
+        } else if (inflater.needsDictionary()) {
+          byte[] dictionary = dictionaries.get(inflater.getAdler());
+          if (dictionary == null) {
+            throw new IOException("Reply compressed with unknown dictionary "
+              + Integer.toHexString(inflater.getAdler()));
+          }
+          inflater.setDictionary(dictionary);
+        } else if (inflater.needsInput()) {
+          throw new EOFException("Compressed reply is truncated");
+        }
+      }
+    } catch (DataFormatException dfe) {
+      throw new IOException("Bad compressed reply: " + dfe.getMessage());
+    }
+    return out.toByteArray();
+  }
+
+  // Sends a BATCH request and reads the "BATCH n" line and the n replies that
+  // follow it. The server may send fewer than asked for if count is too big.
+  static String[][] batch(PrintStream toServer, BufferedReader fromServer,
+  int uuid, String name, int count) throws IOException {
+    toServer.println("BATCH " + count);
+    toServer.println(uuid);
+    toServer.println(name);
+    toServer.flush();
+    awaitReply(fromServer);
+    try {
+      String header = fromServer.readLine();
+      if (header == null || !header.startsWith("BATCH ")) {
+        throw new IOException("Unexpected reply to batch request: " + header);
+      }
+      int n = Integer.parseInt(header.substring(6).trim());
+      String[][] replies = new String[n][];
+      for (int i = 0; i < n; i++) {
+        replies[i] = readReply(fromServer);
+      }
+      return replies;
+    } catch (NumberFormatException nfe) {
+      throw new ReplyLostException(new IOException("Bad batch reply: " + nfe.getMessage()));
+    } catch (IOException x) {
+      throw lost(x);
+    }
+  }
+
+  // Reads the label line and the text line of the reply to a request that
+  // has been sent.
+  static String[] reply(BufferedReader fromServer) throws IOException {
+    awaitReply(fromServer);
+    try {
+      return readReply(fromServer);
+    } catch (IOException x) {
+      throw lost(x);
+    }
+  }
+
+  // Waits for the first byte of a reply. If the connection is closed or
+  // reset before it comes, the server did not take the request (it closes
+  // connections only between requests), so the request may be sent again;
+  // the plain IOException says so. A timeout, or a failure once the reply
+  // has started, is a ReplyLostException.
+  static void awaitReply(BufferedReader fromServer) throws IOException {
+    try {
+      fromServer.mark(1);
+      int first = fromServer.read();
+      fromServer.reset();
+      if (first < 0) {
+        throw new EOFException("Connection closed by server");
+      }
+    } catch (SocketTimeoutException ste) {
+      throw new ReplyLostException(ste);
+    }
+  }
+
+  // The same for binary replies. A reply frame starts with its length,
+  // which is below MAX_REPLY, so its first byte is 0; anything else is the
+  // text refusal (BUSY or LIMITED) of a server that did not take the
+  // request.
+  void awaitReply(DataInputStream frames) throws IOException {
+    try {
+      frames.mark(1);
+      int first = frames.read();
+      frames.reset();
+      if (first < 0) {
+        throw new EOFException("Connection closed by server");
+      }
+      if (first != 0) {
+        throw new IOException("Server " + server + ", port " + port + " refused the request");
+      }
+    } catch (SocketTimeoutException ste) {
+      throw new ReplyLostException(ste);
+    }
+  }
+
+  static ReplyLostException lost(IOException x) {
+    return x instanceof ReplyLostException ? (ReplyLostException) x : new ReplyLostException(x);
+  }
+
+  // Reads the label line and the text line of one reply.
+  static String[] readReply(BufferedReader fromServer) throws IOException {
+    String[] textFromServer = new String[2];
+    for (int i = 0; i < 2; i++) {
+      textFromServer[i] = fromServer.readLine();
+      if (textFromServer[i] == null) {
+        throw new EOFException("Connection closed by server");
+      }
+    }
+    return textFromServer;
+  }
+
+  void close() {
+    try {
+      socket.close();
+    } catch(IOException x) { }
+    if (inflater != null) {
+      inflater.end();
+    }
+  }
+}
+
+// A request whose reply timed out or broke off. The server may have served
+// it, so it is not sent again (see Balancer).
+class ReplyLostException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  ReplyLostException(IOException cause) {
+    super(cause.getMessage(), cause);
   }
 }
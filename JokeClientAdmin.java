@@ -14,6 +14,11 @@ Compile java files using command-line instructions:
 > javac JokeClient.java
 > javac JokeClientAdmin.java
 
+Benchmarks (JMH, needs Maven) and the client store stress check are in bench/:
+> cd bench
+> mvn package
+> ./run.sh
+
 4. Precise examples / instructions to run this program:
 In separate shell windows, run the compiled files using command-line instructions
 below. Launch the files in any order.
@@ -22,16 +27,148 @@ JOKESERVER:
 > java JokeServer
 - For secondary, add 'secondary' as argument
 > java JokeServer secondary
+- To compile a large text catalog to the binary format that is memory-mapped
+> java JokeServer compile-catalog jokes.txt jokes.jcat
+- Server options are passed as system properties before the class name,
+e.g. > java -Djoke.executor=virtual JokeServer
+  joke.port         joke port (default 4545, 4546 for secondary)
+  joke.adminPort    admin port (default 5050, 5051 for secondary)
+  joke.admin.address  address the admin port listens on (default loopback
+                    only; e.g. 0.0.0.0 for JokeClientAdmin or joke.peers on
+                    other hosts, which can then reconfigure the server)
+  joke.peers        host:adminPort,... of other servers that share this
+                    server's mode; toggles and sets are sent to them
+  joke.peers.syncInterval  ms between resending the mode to peers so that
+                    every server converges (default 5000)
+  joke.cluster      host:storePort,... of every server (this one included)
+                    that shares client state; each client's cycles live on
+                    one server and the others forward its requests there
+  joke.storePort    port this server takes forwarded requests on (default
+                    joke.port + 1000)
+  joke.cluster.address  address the store port listens on (default loopback
+                    only; e.g. 0.0.0.0 when joke.cluster has other hosts,
+                    which can then advance any client's cycles)
+  joke.cluster.self  this server's joke.cluster entry, if not the one on
+                    joke.storePort
+  joke.cluster.timeout  ms to wait for another server (default 1000)
+  joke.cluster.retry  ms before an unreachable server is tried again; its
+                    clients are answered "Failed in attempt" meanwhile, so
+                    their cycles never restart elsewhere (default 5000)
+  joke.executor     pool (default) or virtual (one virtual thread per
+                    connection, Java 21+)
+  joke.workers      pool threads (default 4 per core, at least 8)
+  joke.queue        connections queued for the pool (default 256)
+  joke.backlog      connections the OS queues before the joke port accepts
+                    them, on either front end (default joke.queue)
+  joke.rejection    abort (default, client is told the server is busy) or
+                    callerruns (accept loop serves one request and waits)
+                    when the queue is full
+  joke.maxConnections  virtual-thread connections in flight (default 10000)
+  joke.frontend     blocking (default, one task per connection) or nio
+                    (Selector event loops, no thread per connection)
+  joke.eventLoops   nio event loop threads (default one per core)
+  joke.idleTimeout  ms a keep-alive connection may stay idle (default 5000)
+  joke.keepalive.max  pool threads keep-alive connections may hold (default
+                    three quarters of joke.workers); past it, and while
+                    connections are queued, a keep-alive connection is
+                    closed after the requests it sent at once
+  joke.maxBatch     most jokes or proverbs sent for one BATCH request
+                    (default 1000); a count below 1 gets one
+  joke.limit.connections  connections accepted and not yet closed, over
+                    which new ones are answered LIMITED without a thread
+                    (default 0, no limit)
+  joke.limit.address  new connections per second from one source address
+                    (default 0, no limit); joke.limit.address.burst allows
+                    more at once (default one second's worth)
+  joke.limit.client  requests per second for one uuid (default 0, no
+                    limit); joke.limit.client.burst allows more at once
+                    (default one second's worth)
+  joke.limit.slots  rate buckets per limit, shared by uuids or addresses
+                    that hash alike (default 65536)
+  joke.store        heap (default), offheap or mapped (off-heap, kept in a
+                    file so client cycles survive a restart)
+  joke.catalog      catalog file, text or compiled (default jokes.txt, or the
+                    built-in jokes and proverbs if there is no jokes.txt)
+  joke.catalog.reload  seconds between checks for a changed catalog file,
+                    which is then reloaded while serving (default 5, 0 never)
+  joke.deflate      true to compress every item once when the catalog is
+                    loaded, for clients that ask for compressed replies
+                    (default false; some 30 us an item at each load)
+  joke.deflate.dictionary  bytes of catalog text in the preset dictionary
+                    those replies are compressed with (default 8192, at
+                    most 32768); clients fetch it once per catalog
+  joke.store.capacity  most clients kept off the heap (default 1000000)
+  joke.store.categories  catalog categories each client has a cycle for off
+                    the heap (default the catalog's categories, at least 4)
+  joke.store.full   reject (default, request fails) or recycle (another
+                    client's record is reused) when the off-heap store is full
+  joke.store.file   mapped store file (default clients-PORT.dat)
+  joke.store.sync   request, batch (default) or shutdown: when the mapped
+                    store is forced to disk
+  joke.store.syncInterval  ms between batch syncs (default 1000)
+  joke.clients.max  most clients kept by the heap store, least recently
+                    used are evicted first (default 0, no limit)
+  joke.clients.ttl  seconds a client may be idle in the heap store before it
+                    is evicted and starts a new cycle (default 0, never)
+  joke.metricsPort  loopback port serving metrics in the Prometheus text
+                    format, e.g. > curl localhost:5060/metrics (default
+                    joke.adminPort + 10, 0 off)
+  joke.metrics.log  seconds between metrics snapshot lines (default 60,
+                    0 never)
+  joke.log.file     file log lines are appended to (default stdout); they
+                    are written by a thread of their own, in batches
+  joke.log.access   true to log a line per request with uuid, label, mode,
+                    node and latency (default false)
+  joke.log.buffer   log lines held before the writer catches up (default
+                    8192)
+  joke.log.overflow  drop (default, counted in the metrics) or block when
+                    the log buffer is full
+  joke.shutdown.timeout  seconds connections get to finish when the server
+                    shuts down (default 10)
+- Client options are passed the same way,
+e.g. > java -Djoke.keepalive=true JokeClient
+  joke.keepalive    true to send all requests over one open connection per
+                    server instead of one connection per joke (default false)
+  joke.balance      pinned (default, the server chosen with (s)), least
+                    (fewest requests in flight) or latency (faster of two
+                    random servers): which server each request goes to
+  joke.connectTimeout  ms to connect to a server (default 1000)
+  joke.readTimeout  ms to wait for a reply (default 5000)
+  joke.retries      other servers a request is tried on when one cannot be
+                    reached or closes the connection before answering
+                    (default 2); a request whose reply timed out or broke
+                    off is not sent again, since it may have been served
+  joke.cooldown     ms a failed server is avoided while others are up
+                    (default 5000)
+  joke.protocol     text (default), binary or deflate: requests and replies
+                    as length-prefixed binary frames, which servers recognise
+                    by their first byte (JokeClientAdmin takes it too);
+                    deflate also asks for replies compressed with the
+                    server's dictionary, if it was started with joke.deflate
+  joke.load.clients  run headless: simulate this many clients and report
+                    throughput and latency percentiles instead of prompting
+  joke.load.threads  requests in flight at once (default 64)
+  joke.load.rate    requests per second, 0 for as fast as possible (default)
+  joke.load.duration  seconds measured (default 10), after
+  joke.load.warmup  seconds not measured (default 2)
+  joke.load.batch   items per request, BATCH requests above 1 (default 1)
+  joke.load.seed    seed for client uuids and request order (default 1)
 JOKECLIENT:
 - For localhost, no arguments or one argument ('localhost' OR 127.0.0.1) to run
 > java JokeClient
 > java JokeClient localhost
 - For two servers, two IP addresses as arguments
 > java JokeClient localhost localhost
+- For any number of servers, host:port arguments
+> java -Djoke.balance=least JokeClient localhost:4545 localhost:4600 localhost:4601
+- Headless load test, e.g. 5000 clients at 2000 requests per second
+> java -Djoke.load.clients=5000 -Djoke.load.rate=2000 JokeClient localhost
 JOKECLIENTADMIN:
 - For one server, no arguments or one argument
 > java JokeClientAdmin
 > java JokeClientAdmin localhost
+- For servers on other admin ports, host:port arguments
+> java JokeClientAdmin localhost:5100 localhost:5101
 
 This was not tested across machines. It was tested for multiple servers that
 were both local. Therefore, it may run across machines when the Joke Client is
@@ -41,19 +178,45 @@ passed the IP address.
 - JokeServer.java
 - JokeClient.java
 - JokeClientAdmin.java
+- jokes.txt (optional) catalog of jokes, proverbs and any other categories,
+  one item per line: CATEGORY<TAB>LABEL<TAB>text
 
 5. Notes:
 - The client uuid is not really a universally unique identifier, I use a random
 int generator for the uuids in JokeClient. This could create a bug if two
 clients end up with the same uuid, though the chances are very low that this
 occurs.
-- The program is limited to 1 or 2 JokeServers running at the same time.
+- JokeClientAdmin knows 1 or 2 JokeServers at a time, JokeClient any
+number, failing over to the next one when a server is down. More servers
+can run on one host with joke.port and joke.adminPort, and share one mode
+with joke.peers. Started with the same joke.cluster, they also share client
+state, so a client that switches servers with (s) keeps its place.
 It was not tested across Internet connections, only locally. Therefore, it
 may not perform correctly when passed remote IP addresses as arguments.
+- Each JokeClientAdmin toggle moves the server to the next category of its
+catalog, JOKE to PROVERB and back for the default catalog. Typing
+'set NAME' (e.g. 'set proverb') sets the mode instead. With joke.peers,
+the new mode is sent to every peer; each change has a version number and
+the newest one wins.
+- Other JokeClientAdmin commands tune a running server: 'workers 16'
+resizes the worker pool, 'limit client 50' (or 'limit address RATE
+[BURST]', 'limit connections N') changes a limit, 'clients max 100000' and
+'clients ttl 600' bound the heap client store, 'reload' reloads the
+catalog, 'snapshot' writes the mapped client store to its file, 'stats'
+prints the metrics, 'shutdown [SECONDS]' stops the server (see below; only
+from its own host) and 'help' lists the commands. The admin port only acts
+on commands, so a connection that sends nothing changes nothing.
+- In JokeClient, typing a number n instead of pressing enter asks for the
+next n jokes or proverbs in a single BATCH request.
 - When JokeClient or JokeClientAdmin switch servers, the server name and IP
 address are displayed,
 e.g. 'Now communicating with: localhost/127.0.0.1, port 5051'
-- JokeServer runs continuously until shell is terminated.
+- JokeServer runs until it gets SIGTERM, Ctrl-C or the admin 'shutdown'
+command. It then stops accepting connections, finishes the requests it has
+(closing keep-alive connections between requests, so JokeClients move to
+another server without an error) for up to joke.shutdown.timeout seconds,
+and writes its last metrics line, client store and log before it exits,
+so servers can be restarted one at a time without clients noticing.
 
 ----------------------------------------------------------*/
 
@@ -80,13 +243,16 @@ public class JokeClientAdmin {
       // If one or two arguments are provided when JokeClientAdmin is launched
       // in the console, set the server names to the corresponding variables.
       else {
-        // Assign the first console argument to serverOne variable
-        serverOne = args[0];
+        // Assign the first console argument to serverOne variable, with its
+        // admin port if given as host:port
+        serverOne = host(args[0]);
+        portOne = port(args[0], portOne);
       }
       // Perform InetAddress lookup based on server name.
       System.out.println("Server one: " + InetAddress.getByName(serverOne) + ", port " + portOne);
       if (args.length >= 2) {
-        serverTwo = args[1];
+        serverTwo = host(args[1]);
+        portTwo = port(args[1], portTwo);
         System.out.println("Server two: " + InetAddress.getByName(serverTwo) + ", port " + portTwo);
       }
     } catch(UnknownHostException ex) {
@@ -103,13 +269,21 @@ public class JokeClientAdmin {
       String server = serverOne;
       int port = portOne;
       do {
-        System.out.print("Press enter to toggle mode, type (s) to switch servers, (quit) to end: ");
+        System.out.print("Press enter to toggle mode, (set NAME) to set it, type a command ((help) lists them), (s) to switch servers, (quit) to end: ");
         System.out.flush();
         mode = in.readLine();
         // If user presses enter with no other input, toggle Joke/Proverb mode
         // on the server the admin is connected to
         if (mode.isEmpty())
         toggleMode(server, port);
+        // 'set NAME' sets the mode, e.g. 'set proverb', on the server and
+        // every peer it shares its mode with
+        else if (mode.startsWith("set "))
+        setMode(server, port, mode.substring(4).trim());
+        // Anything else but 's' and 'quit' is sent to the server as an admin
+        // command, e.g. 'workers 16' or 'stats'
+        else if (!mode.equals("s") && mode.indexOf("quit") < 0)
+        command(server, port, mode.trim());
         // If user inputs 's' command, check if JokeClientAdmin has a secondary
         // JokeServer to connect to. If it does, switch connection to that
         // server.
@@ -140,12 +314,93 @@ public class JokeClientAdmin {
   } catch (IOException ioe) { ioe.printStackTrace(); }
 }
 
+// Host part of a host or host:port argument.
+static String host(String arg) {
+  int colon = arg.lastIndexOf(':');
+  return colon < 0 ? arg : arg.substring(0, colon);
+}
+
+// Port part of a host:port argument, or the default port.
+static int port(String arg, int defaultPort) {
+  int colon = arg.lastIndexOf(':');
+  return colon < 0 ? defaultPort : Integer.parseInt(arg.substring(colon + 1));
+}
+
+// Set with -Djoke.protocol=binary (or deflate, which only changes joke
+// replies) to send commands as binary frames: the magic byte, then a 4-byte
+// length, the op (0 toggle, 1 set) and the mode to set. The answer frame
+// holds the category, version and name.
+static final String PROTOCOL = System.getProperty("joke.protocol", "text");
+static final boolean BINARY = PROTOCOL.equals("binary") || PROTOCOL.equals("deflate");
+
+// Sends a binary command frame and displays the answer like the text
+// protocol's, e.g. 'MODE 1 3 PROVERB'.
+static void binaryCommand(String server, int port, int op, String mode) {
+  try {
+    Socket socket = new Socket(server, port);
+    byte[] argument = mode.getBytes("UTF-8");
+    DataOutputStream toServer = new DataOutputStream(
+      new BufferedOutputStream(socket.getOutputStream()));
+    toServer.write(0xB7);
+    toServer.writeInt(1 + argument.length);
+    toServer.write(op);
+    toServer.write(argument);
+    toServer.flush();
+    DataInputStream fromServer = new DataInputStream(socket.getInputStream());
+    byte[] reply = new byte[fromServer.readInt() - 5];
+    int category = fromServer.readUnsignedByte();
+    int version = fromServer.readInt();
+    fromServer.readFully(reply);
+    String name = new String(reply, "UTF-8");
+    System.out.println(category == 255 ? "ERROR " + name
+      : "MODE " + category + " " + version + " " + name);
+    socket.close();
+  }
+  catch(IOException x) {
+    System.out.println("Socket error.");
+    x.printStackTrace();
+  }
+}
+
+// Method to connect to JokeServer to set the mode to the named category and
+// display the server's answer, e.g. 'MODE 1 3 PROVERB' (category, version,
+// name).
+static void setMode(String server, int port, String mode) {
+  if (BINARY) {
+    binaryCommand(server, port, 1, mode);
+    return;
+  }
+  command(server, port, "SET " + mode);
+}
+
 // Method to connect to JokeServer to toggle mode between Joke and Proverb
 static void toggleMode(String server, int port) {
-  Socket socket;
+  if (BINARY) {
+    binaryCommand(server, port, 0, "");
+    return;
+  }
+  command(server, port, "TOGGLE");
+}
 
+// Sends one admin command line and displays the server's answer: one line,
+// or for STATS a 'STATS n' line and the n lines of metrics that follow it.
+// Commands other than toggle and set are sent as text even with
+// joke.protocol=binary, since binary frames only carry mode commands.
+static void command(String server, int port, String command) {
   try {
-    socket = new Socket(server, port);
+    Socket socket = new Socket(server, port);
+    PrintStream toServer = new PrintStream(socket.getOutputStream());
+    BufferedReader fromServer = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    toServer.println(command);
+    toServer.flush();
+    String reply = fromServer.readLine();
+    System.out.println(reply);
+    if (reply != null && reply.startsWith("STATS ")) {
+      int lines = Integer.parseInt(reply.substring(6).trim());
+      for (int i = 0; i < lines; i++) {
+        System.out.println(fromServer.readLine());
+      }
+    }
     socket.close();
   }
   catch(IOException x) {
@@ -14,6 +14,11 @@ Compile java files using command-line instructions:
 > javac JokeClient.java
 > javac JokeClientAdmin.java
 
+Benchmarks (JMH, needs Maven) and the client store stress check are in bench/:
+> cd bench
+> mvn package
+> ./run.sh
+
 4. Precise examples / instructions to run this program:
 In separate shell windows, run the compiled files using command-line instructions
 below. Launch the files in any order.
@@ -22,16 +27,148 @@ JOKESERVER:
 > java JokeServer
 - For secondary, add 'secondary' as argument
 > java JokeServer secondary
+- To compile a large text catalog to the binary format that is memory-mapped
+> java JokeServer compile-catalog jokes.txt jokes.jcat
+- Server options are passed as system properties before the class name,
+e.g. > java -Djoke.executor=virtual JokeServer
+  joke.port         joke port (default 4545, 4546 for secondary)
+  joke.adminPort    admin port (default 5050, 5051 for secondary)
+  joke.admin.address  address the admin port listens on (default loopback
+                    only; e.g. 0.0.0.0 for JokeClientAdmin or joke.peers on
+                    other hosts, which can then reconfigure the server)
+  joke.peers        host:adminPort,... of other servers that share this
+                    server's mode; toggles and sets are sent to them
+  joke.peers.syncInterval  ms between resending the mode to peers so that
+                    every server converges (default 5000)
+  joke.cluster      host:storePort,... of every server (this one included)
+                    that shares client state; each client's cycles live on
+                    one server and the others forward its requests there
+  joke.storePort    port this server takes forwarded requests on (default
+                    joke.port + 1000)
+  joke.cluster.address  address the store port listens on (default loopback
+                    only; e.g. 0.0.0.0 when joke.cluster has other hosts,
+                    which can then advance any client's cycles)
+  joke.cluster.self  this server's joke.cluster entry, if not the one on
+                    joke.storePort
+  joke.cluster.timeout  ms to wait for another server (default 1000)
+  joke.cluster.retry  ms before an unreachable server is tried again; its
+                    clients are answered "Failed in attempt" meanwhile, so
+                    their cycles never restart elsewhere (default 5000)
+  joke.executor     pool (default) or virtual (one virtual thread per
+                    connection, Java 21+)
+  joke.workers      pool threads (default 4 per core, at least 8)
+  joke.queue        connections queued for the pool (default 256)
+  joke.backlog      connections the OS queues before the joke port accepts
+                    them, on either front end (default joke.queue)
+  joke.rejection    abort (default, client is told the server is busy) or
+                    callerruns (accept loop serves one request and waits)
+                    when the queue is full
+  joke.maxConnections  virtual-thread connections in flight (default 10000)
+  joke.frontend     blocking (default, one task per connection) or nio
+                    (Selector event loops, no thread per connection)
+  joke.eventLoops   nio event loop threads (default one per core)
+  joke.idleTimeout  ms a keep-alive connection may stay idle (default 5000)
+  joke.keepalive.max  pool threads keep-alive connections may hold (default
+                    three quarters of joke.workers); past it, and while
+                    connections are queued, a keep-alive connection is
+                    closed after the requests it sent at once
+  joke.maxBatch     most jokes or proverbs sent for one BATCH request
+                    (default 1000); a count below 1 gets one
+  joke.limit.connections  connections accepted and not yet closed, over
+                    which new ones are answered LIMITED without a thread
+                    (default 0, no limit)
+  joke.limit.address  new connections per second from one source address
+                    (default 0, no limit); joke.limit.address.burst allows
+                    more at once (default one second's worth)
+  joke.limit.client  requests per second for one uuid (default 0, no
+                    limit); joke.limit.client.burst allows more at once
+                    (default one second's worth)
+  joke.limit.slots  rate buckets per limit, shared by uuids or addresses
+                    that hash alike (default 65536)
+  joke.store        heap (default), offheap or mapped (off-heap, kept in a
+                    file so client cycles survive a restart)
+  joke.catalog      catalog file, text or compiled (default jokes.txt, or the
+                    built-in jokes and proverbs if there is no jokes.txt)
+  joke.catalog.reload  seconds between checks for a changed catalog file,
+                    which is then reloaded while serving (default 5, 0 never)
+  joke.deflate      true to compress every item once when the catalog is
+                    loaded, for clients that ask for compressed replies
+                    (default false; some 30 us an item at each load)
+  joke.deflate.dictionary  bytes of catalog text in the preset dictionary
+                    those replies are compressed with (default 8192, at
+                    most 32768); clients fetch it once per catalog
+  joke.store.capacity  most clients kept off the heap (default 1000000)
+  joke.store.categories  catalog categories each client has a cycle for off
+                    the heap (default the catalog's categories, at least 4)
+  joke.store.full   reject (default, request fails) or recycle (another
+                    client's record is reused) when the off-heap store is full
+  joke.store.file   mapped store file (default clients-PORT.dat)
+  joke.store.sync   request, batch (default) or shutdown: when the mapped
+                    store is forced to disk
+  joke.store.syncInterval  ms between batch syncs (default 1000)
+  joke.clients.max  most clients kept by the heap store, least recently
+                    used are evicted first (default 0, no limit)
+  joke.clients.ttl  seconds a client may be idle in the heap store before it
+                    is evicted and starts a new cycle (default 0, never)
+  joke.metricsPort  loopback port serving metrics in the Prometheus text
+                    format, e.g. > curl localhost:5060/metrics (default
+                    joke.adminPort + 10, 0 off)
+  joke.metrics.log  seconds between metrics snapshot lines (default 60,
+                    0 never)
+  joke.log.file     file log lines are appended to (default stdout); they
+                    are written by a thread of their own, in batches
+  joke.log.access   true to log a line per request with uuid, label, mode,
+                    node and latency (default false)
+  joke.log.buffer   log lines held before the writer catches up (default
+                    8192)
+  joke.log.overflow  drop (default, counted in the metrics) or block when
+                    the log buffer is full
+  joke.shutdown.timeout  seconds connections get to finish when the server
+                    shuts down (default 10)
+- Client options are passed the same way,
+e.g. > java -Djoke.keepalive=true JokeClient
+  joke.keepalive    true to send all requests over one open connection per
+                    server instead of one connection per joke (default false)
+  joke.balance      pinned (default, the server chosen with (s)), least
+                    (fewest requests in flight) or latency (faster of two
+                    random servers): which server each request goes to
+  joke.connectTimeout  ms to connect to a server (default 1000)
+  joke.readTimeout  ms to wait for a reply (default 5000)
+  joke.retries      other servers a request is tried on when one cannot be
+                    reached or closes the connection before answering
+                    (default 2); a request whose reply timed out or broke
+                    off is not sent again, since it may have been served
+  joke.cooldown     ms a failed server is avoided while others are up
+                    (default 5000)
+  joke.protocol     text (default), binary or deflate: requests and replies
+                    as length-prefixed binary frames, which servers recognise
+                    by their first byte (JokeClientAdmin takes it too);
+                    deflate also asks for replies compressed with the
+                    server's dictionary, if it was started with joke.deflate
+  joke.load.clients  run headless: simulate this many clients and report
+                    throughput and latency percentiles instead of prompting
+  joke.load.threads  requests in flight at once (default 64)
+  joke.load.rate    requests per second, 0 for as fast as possible (default)
+  joke.load.duration  seconds measured (default 10), after
+  joke.load.warmup  seconds not measured (default 2)
+  joke.load.batch   items per request, BATCH requests above 1 (default 1)
+  joke.load.seed    seed for client uuids and request order (default 1)
 JOKECLIENT:
 - For localhost, no arguments or one argument ('localhost' OR 127.0.0.1) to run
 > java JokeClient
 > java JokeClient localhost
 - For two servers, two IP addresses as arguments
 > java JokeClient localhost localhost
+- For any number of servers, host:port arguments
+> java -Djoke.balance=least JokeClient localhost:4545 localhost:4600 localhost:4601
+- Headless load test, e.g. 5000 clients at 2000 requests per second
+> java -Djoke.load.clients=5000 -Djoke.load.rate=2000 JokeClient localhost
 JOKECLIENTADMIN:
 - For one server, no arguments or one argument
 > java JokeClientAdmin
 > java JokeClientAdmin localhost
+- For servers on other admin ports, host:port arguments
+> java JokeClientAdmin localhost:5100 localhost:5101
 
 This was not tested across machines. It was tested for multiple servers that
 were both local. Therefore, it may run across machines when the Joke Client is
@@ -41,370 +178,4578 @@ passed the IP address.
 - JokeServer.java
 - JokeClient.java
 - JokeClientAdmin.java
+- jokes.txt (optional) catalog of jokes, proverbs and any other categories,
+  one item per line: CATEGORY<TAB>LABEL<TAB>text
 
 5. Notes:
 - The client uuid is not really a universally unique identifier, I use a random
 int generator for the uuids in JokeClient. This could create a bug if two
 clients end up with the same uuid, though the chances are very low that this
 occurs.
-- The program is limited to 1 or 2 JokeServers running at the same time.
+- JokeClientAdmin knows 1 or 2 JokeServers at a time, JokeClient any
+number, failing over to the next one when a server is down. More servers
+can run on one host with joke.port and joke.adminPort, and share one mode
+with joke.peers. Started with the same joke.cluster, they also share client
+state, so a client that switches servers with (s) keeps its place.
 It was not tested across Internet connections, only locally. Therefore, it
 may not perform correctly when passed remote IP addresses as arguments.
+- Each JokeClientAdmin toggle moves the server to the next category of its
+catalog, JOKE to PROVERB and back for the default catalog. Typing
+'set NAME' (e.g. 'set proverb') sets the mode instead. With joke.peers,
+the new mode is sent to every peer; each change has a version number and
+the newest one wins.
+- Other JokeClientAdmin commands tune a running server: 'workers 16'
+resizes the worker pool, 'limit client 50' (or 'limit address RATE
+[BURST]', 'limit connections N') changes a limit, 'clients max 100000' and
+'clients ttl 600' bound the heap client store, 'reload' reloads the
+catalog, 'snapshot' writes the mapped client store to its file, 'stats'
+prints the metrics, 'shutdown [SECONDS]' stops the server (see below; only
+from its own host) and 'help' lists the commands. The admin port only acts
+on commands, so a connection that sends nothing changes nothing.
+- In JokeClient, typing a number n instead of pressing enter asks for the
+next n jokes or proverbs in a single BATCH request.
 - When JokeClient or JokeClientAdmin switch servers, the server name and IP
 address are displayed,
 e.g. 'Now communicating with: localhost/127.0.0.1, port 5051'
-- JokeServer runs continuously until shell is terminated.
+- JokeServer runs until it gets SIGTERM, Ctrl-C or the admin 'shutdown'
+command. It then stops accepting connections, finishes the requests it has
+(closing keep-alive connections between requests, so JokeClients move to
+another server without an error) for up to joke.shutdown.timeout seconds,
+and writes its last metrics line, client store and log before it exits,
+so servers can be restarted one at a time without clients noticing.
 
 ----------------------------------------------------------*/
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 import java.lang.Math;
 
-// ClientData data structure stores client uuid and a list of the labels of
-//  what jokes and proverbs the client has not been sent
+// ClientData data structure stores client uuid and where the client is in its
+// current shuffled cycle of each catalog category (jokes, proverbs, ...). Each
+// cycle is packed into a single long (see ShuffleCycle) no matter how many
+// items the category has, so a client costs one small object and one long
+// per category it has asked for.
 class ClientData {
   final int uuid; // unique identifier to identify client on each request
-  LinkedList<String> jokeLabelLinkedList; // List holds labels of jokes have not been sent
-  LinkedList<String> proverbLabelLinkedList; // List holds labels of proverbs have not been sent
+  long[] cycles = new long[0]; // Cycle state per category, 0 until first used
 
   ClientData(int uuid) {
     this.uuid = uuid;
-    jokeLabelLinkedList = new LinkedList<String>();
-    proverbLabelLinkedList = new LinkedList<String>();
-    shuffleJokeLabels();
-    shuffleProverbLabels();
-  }
-
-  /* When ClientData is first constructed, shuffleJokesLabels method adds
-  joke labels to a linked list and shuffles the order of the labels.
-  When the client makes a request while in JOKE mode, a label is popped from
-  the linked list. When the list is empty, the method adds labels back to the
-  linked list and shuffles the order again. */
-  void shuffleJokeLabels() {
-    jokeLabelLinkedList.add("JA");
-    jokeLabelLinkedList.add("JB");
-    jokeLabelLinkedList.add("JC");
-    jokeLabelLinkedList.add("JD");
-    Collections.shuffle(jokeLabelLinkedList);
-  }
-
-  /* When ClientData is first constructed, shuffleProverbLabels method adds
-  proverb labels to a linked list and shuffles the order of the labels.
-  When the client makes a request while in PROVERB mode, a label is popped from
-  the linked list. When the list is empty, the method adds labels back to the
-  linked list and shuffles the order again. */
-  void shuffleProverbLabels() {
-    proverbLabelLinkedList.add("PA");
-    proverbLabelLinkedList.add("PB");
-    proverbLabelLinkedList.add("PC");
-    proverbLabelLinkedList.add("PD");
-    Collections.shuffle(proverbLabelLinkedList);
+  }
+
+  // Moves the client's cycle through a category of count items on by one
+  // item, starting a shuffled cycle on the first request or a reshuffled
+  // one after the last item, and returns the state the item is taken from
+  // (see ShuffleCycle.result). Callers that share the client between
+  // threads hold a lock for this step only.
+  long advance(int category, int count) {
+    if(category >= cycles.length) {
+      cycles = Arrays.copyOf(cycles, category + 1);
+    }
+    long cycle = ShuffleCycle.current(cycles[category], count);
+    cycles[category] = ShuffleCycle.following(cycle, count);
+    return cycle;
   }
 }
 
-// Worker class definition, extends Thread to create a new thread of execution
-// when Worker object is created, run.
-class Worker extends Thread {
-  Socket socket;                      // socket connection to client
-  ArrayList<ClientData> clientList;   // List to hold client data for lookup
-  static HashMap jokesMap;            // Map to look up joke text using label
-  static HashMap proverbsMap;         // Map to look up proverb text using label
-  boolean secondary;                  // boolean indicates secondary server
+// ShuffleCycle packs a client's shuffled cycle through the items of one
+// category into a long: the high 32 bits hold a random seed that picks the
+// order, and the low 32 bits hold the cursor, how many items of the cycle
+// have been sent. The item at a cursor is computed from the seed, so the
+// state is the same size for 4 items or 400,000, and reshuffling is only
+// drawing a new seed. State 0 means no cycle has been started.
+//
+// The order is a pseudo-random permutation of [0, count) keyed by the seed:
+// a balanced Feistel network over the smallest even number of bits that
+// covers count, which is a bijection on that power-of-two domain for any
+// round function, restricted to [0, count) by cycle-walking (permuting
+// again while the result is out of range). The domain is less than four
+// times count, so an item takes a few hash rounds on average whatever the
+// size of the catalog, and every item still comes up exactly once per
+// cycle because walking along a permutation's cycles stays a permutation.
+final class ShuffleCycle {
+  static final int ROUNDS = 4;
 
-  Worker (Socket sock, ArrayList<ClientData> cd, HashMap<String, String> jm,
-  HashMap<String, String> pm, boolean s) {
-    socket = sock;
-    clientList = cd;
-    jokesMap = jm;
-    proverbsMap = pm;
-    secondary = s;
+  private ShuffleCycle() { }
+
+  // A new cycle with a random nonzero seed, cursor at 0.
+  static long started() {
+    int seed;
+    do {
+      seed = ThreadLocalRandom.current().nextInt();
+    } while (seed == 0);
+    return (long) seed << 32;
   }
 
-  public void run() {
+  // The cycle to take the next item from: state unchanged, or a new cycle if
+  // none was started or the catalog shrank under the cursor.
+  static long current(long cycle, int count) {
+    return cycle == 0 || cursor(cycle) >= count ? started() : cycle;
+  }
 
-    // Initialize local variables to send data through and read from the socket.
-    PrintStream out = null;
-    BufferedReader in = null;
+  static int seed(long cycle) {
+    return (int) (cycle >>> 32);
+  }
 
-    try {
-      // Instantiate 'in' to read input from the client through the socket.
-      in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-      // Instantiate 'out' to write to the PrintStream to send JOKE or PROVERB
-      // through the socket to the client.
-      out = new PrintStream(socket.getOutputStream());
+  static int cursor(long cycle) {
+    return (int) cycle;
+  }
 
-      try {
-        // Initializes local variable to hold client's uuid, name to store in ClientData
-        int uuid;
-        int index = 0;
-        uuid = Integer.parseInt(in.readLine()); // parse int uuid passed from JokeClient
+  // Item index at the cursor.
+  static int label(long cycle, int count) {
+    if (count <= 1) {
+      return 0;
+    }
+    // Half the bits of the domain, which must be at least count
+    int half = (33 - Integer.numberOfLeadingZeros(count - 1)) / 2;
+    int seed = seed(cycle);
+    int item = cursor(cycle);
+    do {
+      item = permute(item, seed, half);
+    } while (item >= count);
+    return item;
+  }
 
-        // Add client to clientData array list if list is empty
-        if(clientList.isEmpty()) {
-          clientList.add(new ClientData(uuid));
-        }
-        // if client list is not empty, check to see if client already added to list
-        else {
-          boolean contains = false;
-          // Iterate through client list to identify client data
-          for (int i = 0; i < clientList.size(); i++) {
-            if(uuid == clientList.get(i).uuid) {
-              contains = true;
-              index = i;
-            }
+  // Feistel network over 2 * half bits keyed by seed.
+  static int permute(int value, int seed, int half) {
+    int mask = (1 << half) - 1;
+    int left = value >>> half;
+    int right = value & mask;
+    for (int round = 0; round < ROUNDS; round++) {
+      int next = left ^ (mix(right, seed, round) & mask);
+      left = right;
+      right = next;
+    }
+    return (left << half) | right;
+  }
+
+  // Round function: a murmur-style mix of one half with the seed and round.
+  static int mix(int value, int seed, int round) {
+    int h = (value + round * 0x9E3779B9) ^ seed;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    return h ^ (h >>> 16);
+  }
+
+  // True if the item at the cursor is the last one of the cycle.
+  static boolean isLast(long cycle, int count) {
+    return cursor(cycle) >= count - 1;
+  }
+
+  // The state after sending the item at the cursor: the cursor moved on, or
+  // a new reshuffled cycle if that item was the last one.
+  static long following(long cycle, int count) {
+    return isLast(cycle, count) ? started() : cycle + 1;
+  }
+
+  // The item at the cursor, with ClientStore.COMPLETED set if it is the
+  // last item of the cycle.
+  static int result(long cycle, int count) {
+    return isLast(cycle, count) ? label(cycle, count) | ClientStore.COMPLETED : label(cycle, count);
+  }
+}
+
+// ClientStore keeps every client's place in its cycle through each catalog
+// category, keyed by uuid. The request path only asks it for the next item
+// index, so the
+// state can live in ClientData objects on the heap (ClientRegistry) or in
+// fixed-width records off the heap (OffHeapClientStore). The backend is
+// chosen at startup with the joke.store system property.
+interface ClientStore {
+  // Set in the result of next() when the label completed the client's cycle
+  int COMPLETED = 1 << 31;
+
+  // Returns the next item index for the client in a category of count items,
+  // creating the client's state on its first request, and advances the
+  // client's cycle.
+  int next(int uuid, int category, int count);
+
+  // Number of clients currently held in the store.
+  int size();
+
+  // Builds the backend chosen with system properties:
+  //  joke.store           heap (default), offheap or mapped
+  //  joke.store.capacity  most clients held off the heap (default 1000000)
+  //  joke.store.categories  cycles held per client off the heap (default the
+  //                       catalog's categories, at least 4)
+  //  joke.store.full      reject (default) or recycle, see OffHeapClientStore
+  //  joke.store.file      file of the mapped store (default clients-PORT.dat)
+  //  joke.store.sync      request, batch (default) or shutdown, see
+  //                       MappedClientStore
+  //  joke.store.syncInterval  milliseconds between batch syncs (default 1000)
+  //  joke.clients.max     most clients kept by the heap registry (default
+  //                       0, no limit)
+  //  joke.clients.ttl     seconds a client may be idle in the heap registry
+  //                       before it is evicted (default 0, never)
+  //  joke.cluster         host:storePort,... of every node sharing clients,
+  //                       see PartitionedClientStore (default none)
+  //  joke.storePort       port other nodes forward requests to (default the
+  //                       joke port + 1000)
+  static ClientStore fromProperties(int port, int categories) throws IOException {
+    ClientStore local = local(port, categories);
+    String cluster = System.getProperty("joke.cluster");
+    if (cluster == null || cluster.isEmpty()) {
+      return local;
+    }
+    return PartitionedClientStore.start(local, cluster,
+      Integer.getInteger("joke.storePort", port + 1000));
+  }
+
+  // The store for the clients this server holds itself.
+  static ClientStore local(int port, int categories) throws IOException {
+    String kind = System.getProperty("joke.store", "heap");
+    int capacity = Integer.getInteger("joke.store.capacity", 1000000);
+    categories = Integer.getInteger("joke.store.categories", Math.max(4, categories));
+    boolean recycle = System.getProperty("joke.store.full", "reject").equals("recycle");
+    if (kind.equals("mapped")) {
+      return MappedClientStore.open(
+        new File(System.getProperty("joke.store.file", "clients-" + port + ".dat")),
+        capacity, categories, recycle, System.getProperty("joke.store.sync", "batch"),
+        Long.getLong("joke.store.syncInterval", 1000L));
+    }
+    if (kind.equals("offheap")) {
+      return new OffHeapClientStore(capacity, categories, recycle);
+    }
+    ClientRegistry registry = new ClientRegistry(Integer.getInteger("joke.clients.max", 0),
+      Integer.getInteger("joke.clients.ttl", 0));
+    if (registry.ttl > 0) {
+      registry.startExpiry();
+    }
+    return registry;
+  }
+}
+
+// ClientRegistry maps each client uuid to its ClientData. Clients are spread
+// over a fixed number of stripes by a hash of the uuid, and each stripe is an
+// open-addressing table of primitive int keys guarded by its own lock, so a
+// lookup is O(1), uuids are never boxed, and Workers serving clients in
+// different stripes never wait on each other. A request looks up and
+// advances the client's cycle under the stripe lock in one step, so two
+// requests from the same client (say, over two connections at once) each
+// get their own item and the cycle never repeats or skips one; computing
+// the item from the state taken happens after the lock is released.
+//
+// The registry can be bounded. With a maximum size, a stripe that is full
+// evicts a client chosen by CLOCK (second chance): each lookup sets the
+// client's referenced bit, and the stripe's clock hand skips and clears set
+// bits until it finds a client that has not been used since the hand last
+// passed. With an idle TTL, clients not seen for that long are evicted by a
+// background sweep, one stripe at a time. Both use only the stripe lock the
+// lookup already holds. An evicted client simply starts a new cycle. Both
+// bounds can be changed while serving (see ModeWorker's CLIENTS command).
+class ClientRegistry implements ClientStore {
+  static final int STRIPES = 64;           // Number of independently locked tables
+  static final int STRIPE_SHIFT = 6;       // log2(STRIPES), skips the stripe bits
+  final Stripe[] stripes;
+  volatile int maxSize;                    // most clients, 0 for no limit
+  volatile int stripeLimit;                // most clients per stripe, 0 for no limit
+  volatile int ttl;                        // idle seconds before eviction, 0 for none
+  final long start = System.currentTimeMillis();
+  ScheduledExecutorService expiry;         // runs the TTL sweep once there is a TTL
+  ScheduledFuture<?> sweep;
+
+  // Counters to size the registry with
+  final LongAdder hits = new LongAdder();
+  final LongAdder misses = new LongAdder();
+  final LongAdder evictions = new LongAdder();
+
+  ClientRegistry() {
+    this(0, 0);
+  }
+
+  ClientRegistry(int maxSize, int ttlSeconds) {
+    this.maxSize = maxSize;
+    stripeLimit = stripeLimit(maxSize);
+    ttl = ttlSeconds;
+    stripes = new Stripe[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  static int stripeLimit(int maxSize) {
+    return maxSize > 0 ? Math.max(1, (maxSize + STRIPES - 1) / STRIPES) : 0;
+  }
+
+  // Changes the most clients kept, 0 for no limit. Stripes over the new
+  // limit evict their least recently used clients at once.
+  synchronized void limit(int maxSize) {
+    this.maxSize = maxSize;
+    stripeLimit = stripeLimit(maxSize);
+    if (stripeLimit > 0) {
+      for (Stripe stripe : stripes) {
+        stripe.trim(stripeLimit, this);
+      }
+    }
+  }
+
+  // Changes the idle TTL, 0 for none, and the sweep that applies it.
+  synchronized void expireAfter(int seconds) {
+    ttl = seconds;
+    if (sweep != null) {
+      sweep.cancel(false);
+      sweep = null;
+    }
+    if (seconds > 0) {
+      startExpiry();
+    }
+  }
+
+  // Returns the ClientData for uuid, creating and storing it atomically if
+  // this is the first request from that client.
+  ClientData getOrCreate(int uuid) {
+    int hash = hash(uuid);
+    return stripes[hash & (STRIPES - 1)].getOrCreate(uuid, hash >>> STRIPE_SHIFT, this);
+  }
+
+  public int next(int uuid, int category, int count) {
+    int hash = hash(uuid);
+    long cycle = stripes[hash & (STRIPES - 1)].advance(uuid, hash >>> STRIPE_SHIFT, this,
+      category, count);
+    return ShuffleCycle.result(cycle, count);
+  }
+
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      size += stripe.size();
+    }
+    return size;
+  }
+
+  // Evicts every client idle for longer than the TTL.
+  void expire() {
+    int now = now();
+    for (Stripe stripe : stripes) {
+      stripe.expire(now, this);
+    }
+  }
+
+  // Starts a daemon thread that runs expire() a few times per TTL.
+  synchronized void startExpiry() {
+    long period = Math.max(1, ttl / 4);
+    if (expiry == null) {
+      expiry = Executors.newSingleThreadScheduledExecutor(
+        new ServerExecutor.NamedThreadFactory("joke-registry-expiry"));
+    }
+    sweep = expiry.scheduleWithFixedDelay(new Runnable() {
+      public void run() { expire(); }
+    }, period, period, TimeUnit.SECONDS);
+  }
+
+  // Seconds since the registry was created, the clock for idle times.
+  int now() {
+    return (int) ((System.currentTimeMillis() - start) / 1000);
+  }
+
+  // Mixes the uuid bits so that sequential or clustered uuids still spread
+  // evenly over stripes and slots.
+  static int hash(int uuid) {
+    int h = uuid * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  // One stripe of the registry: linear-probing table where a slot is empty
+  // when its value is null, so every int (including 0) is a valid uuid.
+  // Parallel arrays keep when each client was last seen and its CLOCK bit.
+  static final class Stripe {
+    int[] keys = new int[16];
+    ClientData[] values = new ClientData[16];
+    int[] seen = new int[16];
+    boolean[] referenced = new boolean[16];
+    int count;
+    int hand;              // CLOCK hand, the next slot considered for eviction
+
+    synchronized ClientData getOrCreate(int uuid, int hash, ClientRegistry registry) {
+      int now = registry.now();
+      int mask = keys.length - 1;
+      int i = hash & mask;
+      while (values[i] != null) {
+        if (keys[i] == uuid) {
+          if (registry.ttl > 0 && now - seen[i] > registry.ttl) {
+            // Idle too long: treat as a new client, like the sweep would
+            remove(i);
+            registry.evictions.increment();
+            break;
           }
-          if(!contains) { // Client list is not empty and client is not in the list
-            // Add client to list
-            clientList.add(new ClientData(uuid));
-            index = clientList.size() - 1;
+          seen[i] = now;
+          referenced[i] = true;
+          registry.hits.increment();
+          return values[i];
+        }
+        i = (i + 1) & mask;
+      }
+      registry.misses.increment();
+      if (registry.stripeLimit > 0 && count >= registry.stripeLimit) {
+        evictOne();
+        registry.evictions.increment();
+      }
+      ClientData client = new ClientData(uuid);
+      put(uuid, client, now);
+      // Keep the load factor under 3/4 so probe sequences stay short
+      if (count * 4 > keys.length * 3) {
+        resize();
+      }
+      return client;
+    }
+
+    // Looks up or creates the client and advances its cycle atomically.
+    synchronized long advance(int uuid, int hash, ClientRegistry registry, int category,
+    int count) {
+      return getOrCreate(uuid, hash, registry).advance(category, count);
+    }
+
+    synchronized int size() {
+      return count;
+    }
+
+    // Evicts clients by CLOCK until at most limit are left.
+    synchronized void trim(int limit, ClientRegistry registry) {
+      while (count > limit) {
+        evictOne();
+        registry.evictions.increment();
+      }
+    }
+
+    // Evicts the clients of this stripe idle for longer than the TTL.
+    synchronized void expire(int now, ClientRegistry registry) {
+      int i = 0;
+      while (i < keys.length) {
+        if (values[i] != null && now - seen[i] > registry.ttl) {
+          // remove() may shift another client into slot i, so look again
+          remove(i);
+          registry.evictions.increment();
+        } else {
+          i++;
+        }
+      }
+    }
+
+    // Moves the clock hand to the first client whose referenced bit is clear,
+    // clearing the bits it passes, and evicts that client.
+    void evictOne() {
+      int mask = keys.length - 1;
+      while (true) {
+        int i = hand;
+        hand = (hand + 1) & mask;
+        if (values[i] != null) {
+          if (referenced[i]) {
+            referenced[i] = false;
+          } else {
+            remove(i);
+            return;
           }
         }
+      }
+    }
+
+    // Stores a client in the first free slot of its probe sequence and
+    // returns that slot.
+    int put(int uuid, ClientData client, int now) {
+      int mask = keys.length - 1;
+      int i = (hash(uuid) >>> STRIPE_SHIFT) & mask;
+      while (values[i] != null) {
+        i = (i + 1) & mask;
+      }
+      keys[i] = uuid;
+      values[i] = client;
+      seen[i] = now;
+      referenced[i] = false;
+      count++;
+      return i;
+    }
 
-        // If JokeServer is in JOKE mode, call method to send joke to JokeClient
-        if(JokeServer.mode == JokeServer.Mode.JOKE) {
-          // Call printJoke method to send data through socket to the client
-          printJoke(out, clientList.get(index), secondary);
+    // Empties slot i, shifting later clients of the same probe run back so
+    // that every stored client can still be found from its home slot.
+    void remove(int i) {
+      int mask = keys.length - 1;
+      count--;
+      int j = i;
+      while (true) {
+        j = (j + 1) & mask;
+        if (values[j] == null) {
+          break;
         }
-        // If JokeServer is in Proverb mode, call method to send proverb to JokeClient
-        else {
-          // Call printProverb method to send data through socket to the client
-          printProverb(out, clientList.get(index), secondary);
+        int home = (hash(keys[j]) >>> STRIPE_SHIFT) & mask;
+        // Move the client at j into the hole at i unless its home slot lies
+        // cyclically in (i, j], where it would no longer be reachable
+        boolean reachable = i <= j ? (home > i && home <= j) : (home > i || home <= j);
+        if (!reachable) {
+          keys[i] = keys[j];
+          values[i] = values[j];
+          seen[i] = seen[j];
+          referenced[i] = referenced[j];
+          i = j;
         }
+      }
+      values[i] = null;
+    }
 
-      } catch(IOException x) {
-        System.out.println("Server read error.");
-        x.printStackTrace();
+    // Doubles the table and re-inserts every client.
+    void resize() {
+      int[] oldKeys = keys;
+      ClientData[] oldValues = values;
+      int[] oldSeen = seen;
+      boolean[] oldReferenced = referenced;
+      keys = new int[oldKeys.length * 2];
+      values = new ClientData[oldValues.length * 2];
+      seen = new int[oldSeen.length * 2];
+      referenced = new boolean[oldReferenced.length * 2];
+      count = 0;
+      hand = 0;
+      for (int j = 0; j < oldKeys.length; j++) {
+        if (oldValues[j] != null) {
+          int i = put(oldKeys[j], oldValues[j], oldSeen[j]);
+          referenced[i] = oldReferenced[j];
+        }
       }
-      // Closes this socket connection.
-      socket.close();
-    } catch(IOException ioe) { System.out.println(ioe); }
+    }
   }
+}
 
-  // Writes joke to the PrintStream to send data/text to the client through the socket.
-  // This text will be read by the client, printed/displayed in the client console
-  static void printJoke(PrintStream out, ClientData client, boolean secondary) {
-    try {
+// OffHeapClientStore keeps each client's cycles in a fixed-width record in
+// direct memory instead of a ClientData object, so the number of clients
+// ever seen adds nothing for the garbage collector to trace. Records are
+// addressed by a hash of the uuid: like ClientRegistry, the store is split
+// into lock-guarded segments, and each segment is a linear-probing table of
+// slots in its own direct buffer. A request reads and updates its record in
+// place without creating any heap objects. A slot holds one cycle per
+// catalog category, up to the number of categories the store was created
+// with; requests for categories beyond that fail.
+//
+// Capacity is fixed when the store is created. When a client's segment is
+// full, the reject policy fails the request (the client is sent the usual
+// "Failed in attempt to send" line) and the recycle policy drops the client
+// stored nearest to the slot the new client hashes to, so that client starts
+// a new cycle on its next request.
+class OffHeapClientStore implements ClientStore {
+  static final int SEGMENTS = 64;
+  static final int SEGMENT_SHIFT = 6;      // log2(SEGMENTS)
+  // Slot layout: uuid, flags, then one cycle per category
+  static final int UUID = 0;
+  static final int FLAGS = 4;
+  static final int CYCLES = 8;
+  static final int USED = 1;               // flag set on occupied slots
 
-      // Pop joke label from client's joke label list
-      String jokeLabel = client.jokeLabelLinkedList.pop();
+  final Segment[] segments;
+  final int categories;
+  final boolean recycle;
 
-      // Use joke label to look up corresponding joke text in joke map and
-      // write output in correct format to output stream. Add <S2> if this
-      // JokeServer is marked as secondary
-      if(secondary)
-        out.println("<S2> " + jokeLabel);
-      else
-        out.println(jokeLabel);
-      out.println(jokesMap.get(jokeLabel));
+  OffHeapClientStore(int capacity, int categories, boolean recycle) {
+    this(allocate(capacity, slotSize(categories)), segmentLimit(capacity), categories, recycle);
+  }
 
+  // Builds the store over one buffer of slots per segment. Buffers may hold
+  // clients already, as when they are mapped from a file.
+  OffHeapClientStore(ByteBuffer[] buffers, int limit, int categories, boolean recycle) {
+    this.categories = categories;
+    this.recycle = recycle;
+    segments = new Segment[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(buffers[i], limit, slotSize(categories));
+    }
+  }
 
-      // If the client's joke label list is empty, print Cycle Completed message,
-      // call ClientData method to add all joke labels back to the linked list
-      // and shuffle the list.
-      if(client.jokeLabelLinkedList.isEmpty()) {
-        client.shuffleJokeLabels();
-        System.out.println("JOKE CYCLE COMPLETED");
-      }
+  // Bytes per client with room for the cycles of categories.
+  static int slotSize(int categories) {
+    return CYCLES + 8 * categories;
+  }
 
-    } catch(Exception e) {
-      // If server lookup of joke, display error message in client console.
-      out.println("Failed in attempt to send JOKE.");
+  // Most clients each segment may hold.
+  static int segmentLimit(int capacity) {
+    return (capacity + SEGMENTS - 1) / SEGMENTS;
+  }
+
+  // Bytes of slots per segment, keeping every segment at most 3/4 full so
+  // probe sequences stay short.
+  static int segmentBytes(int capacity, int slotSize) {
+    int slots = Integer.highestOneBit(Math.max(segmentLimit(capacity) * 4 / 3, 1)) * 2;
+    return slots * slotSize;
+  }
+
+  static ByteBuffer[] allocate(int capacity, int slotSize) {
+    ByteBuffer[] buffers = new ByteBuffer[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; i++) {
+      buffers[i] = ByteBuffer.allocateDirect(segmentBytes(capacity, slotSize));
     }
+    return buffers;
   }
 
-  // Writes to the PrintStream to send data/text to the client through the socket.
-  // This text will be read by the client, printed/displayed in the client console
-  static void printProverb(PrintStream out, ClientData client, boolean secondary) {
-    try {
+  public int next(int uuid, int category, int count) {
+    if (category >= categories) {
+      throw new IllegalStateException("Client store holds " + categories + " categories");
+    }
+    int hash = ClientRegistry.hash(uuid);
+    long cycle = segments[hash & (SEGMENTS - 1)].advance(uuid, hash >>> SEGMENT_SHIFT,
+      category, count, recycle);
+    return ShuffleCycle.result(cycle, count);
+  }
 
-      // Pop joke label from client's joke label list
-      String proverbLabel = client.proverbLabelLinkedList.pop();
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
 
-      // Use joke label to look up corresponding proverb text in proverb map and
-      // write output in correct format to output stream. Add <S2> if this
-      // JokeServer is marked as secondary
-      if(secondary)
-        out.println("<S2> " + proverbLabel);
-      else
-      out.println(proverbLabel);
-      out.println(proverbsMap.get(proverbLabel));
+  static final class Segment {
+    final ByteBuffer slots;
+    final int slotSize;
+    final int mask;
+    final int limit;       // most clients this segment may hold
+    int count;
 
-      // If the client's joke label list is empty, print Cycle Completed message,
-      // call ClientData method to add all joke labels back to the linked list
-      // and shuffle the list.
-      if(client.proverbLabelLinkedList.isEmpty()) {
-        client.shuffleProverbLabels();
-        System.out.println("PROVERB CYCLE COMPLETED");
+    Segment(ByteBuffer buffer, int limit, int slotSize) {
+      // Little-endian is native on common hardware and fixes the file format
+      slots = buffer.order(ByteOrder.LITTLE_ENDIAN);
+      this.slotSize = slotSize;
+      mask = buffer.capacity() / slotSize - 1;
+      this.limit = limit;
+      for (int i = 0; i <= mask; i++) {
+        if ((slots.getInt(i * slotSize + FLAGS) & USED) != 0) {
+          count++;
+        }
       }
+    }
 
-    } catch(Exception e) {
-      // If server lookup of proverb, display error message in client console.
-      out.println("Failed in attempt to send PROVERB.");
+    // Moves the client's cycle on by one item and returns the state the item
+    // is taken from, as ClientData.advance does.
+    synchronized long advance(int uuid, int hash, int category, int count, boolean recycle) {
+      int offset = find(uuid, hash);
+      if (offset < 0) {
+        offset = insert(uuid, hash, recycle);
+      }
+      int cycleOffset = offset + CYCLES + 8 * category;
+      long cycle = ShuffleCycle.current(slots.getLong(cycleOffset), count);
+      slots.putLong(cycleOffset, ShuffleCycle.following(cycle, count));
+      return cycle;
     }
-  }
-}
 
-// ModeWorker thread runs when user in JokeClientAdmin presses enter
-// to change the server mode from Joke to Proverb. When two servers are running,
-// ModeWorker only changes mode of the server that JokeClientAdmin is
-// communicating with.
-class ModeWorker extends Thread {
-  Socket socket;
-  ModeWorker (Socket s) { socket = s; }
+    // Byte offset of the uuid's slot, or -1 if the client is not stored.
+    int find(int uuid, int hash) {
+      for (int i = hash & mask; ; i = (i + 1) & mask) {
+        int offset = i * slotSize;
+        if ((slots.getInt(offset + FLAGS) & USED) == 0) {
+          return -1;
+        }
+        if (slots.getInt(offset + UUID) == uuid) {
+          return offset;
+        }
+      }
+    }
 
-  public void run() {
-    BufferedReader in = null;
-    // When user presses enter in JokeClientAdmin, try block checks which mode
-    // the server is currently in, and toggles the mode.
-    try {
-      in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-      if(JokeServer.mode == JokeServer.Mode.JOKE) {
-        JokeServer.mode = JokeServer.Mode.PROVERB;
-        System.out.println("Mode toggled to PROVERB.");
+    // Stores a new client with no cycles started and returns its slot offset.
+    int insert(int uuid, int hash, boolean recycle) {
+      if (count >= limit) {
+        if (!recycle) {
+          throw new IllegalStateException("Client store is full");
+        }
+        // Drop the first client found at or after the slot the uuid hashes
+        // to; that client starts a new cycle on its next request
+        int victim = hash & mask;
+        while ((slots.getInt(victim * slotSize + FLAGS) & USED) == 0) {
+          victim = (victim + 1) & mask;
+        }
+        remove(victim);
       }
-      else {
-        JokeServer.mode = JokeServer.Mode.JOKE;
-        System.out.println("Mode toggled to JOKE.");
+      int i = hash & mask;
+      while ((slots.getInt(i * slotSize + FLAGS) & USED) != 0) {
+        i = (i + 1) & mask;
       }
+      count++;
+      int offset = i * slotSize;
+      slots.putInt(offset + UUID, uuid);
+      slots.putInt(offset + FLAGS, USED);
+      for (int k = CYCLES; k < slotSize; k += 8) {
+        slots.putLong(offset + k, 0L);
+      }
+      return offset;
+    }
 
-      // Closes this socket connection.
-      socket.close();
-    } catch(IOException ioe) { System.out.println(ioe); }
+    // Empties slot i, shifting later clients of the same probe run back so
+    // that every stored client can still be found from its home slot.
+    void remove(int i) {
+      count--;
+      int j = i;
+      while (true) {
+        j = (j + 1) & mask;
+        int offset = j * slotSize;
+        if ((slots.getInt(offset + FLAGS) & USED) == 0) {
+          break;
+        }
+        int home = (ClientRegistry.hash(slots.getInt(offset + UUID)) >>> SEGMENT_SHIFT) & mask;
+        // Move the client at j into the hole at i unless its home slot lies
+        // cyclically in (i, j], where it would no longer be reachable
+        boolean reachable = i <= j ? (home > i && home <= j) : (home > i || home <= j);
+        if (!reachable) {
+          copySlot(j, i);
+          i = j;
+        }
+      }
+      slots.putInt(i * slotSize + FLAGS, 0);
+    }
+
+    void copySlot(int from, int to) {
+      for (int k = 0; k < slotSize; k += 8) {
+        slots.putLong(to * slotSize + k, slots.getLong(from * slotSize + k));
+      }
+    }
+
+    synchronized int size() {
+      return count;
+    }
   }
 }
 
-// ModeServer runs asynchronously, waits for JokeClientAdmin to connect to
-// the server. When the JokeClientAdmin user presses enter, the ModeWorker
-// thread runs to toggle the server's mode from Joke to Proverb, or from
-// Proverb to Joke.
-class ModeServer implements Runnable {
-  public static boolean adminControlSwitch = true;
-  int port;
+// MappedClientStore is the off-heap store kept in a memory-mapped file, so
+// that clients keep their place in their cycles when the server restarts.
+// The file is a 4 KB header followed by the slots of each segment, exactly
+// as OffHeapClientStore lays them out in memory, so loading millions of
+// clients is only mapping the file and counting the used slots. Updates go
+// straight to the mapped pages; the sync policy decides when they are
+// forced to disk:
+//  - request: after every request (safest, slowest)
+//  - batch (default): every joke.store.syncInterval milliseconds
+//  - shutdown: only when the server exits
+class MappedClientStore extends OffHeapClientStore {
+  static final int MAGIC = 0x4A4B5354;     // "JKST"
+  static final int VERSION = 2;            // 2: one seed and cursor cycle per category
+  static final int HEADER_SIZE = 4096;
 
-  ModeServer(int p) {
-    port = p;
+  final MappedByteBuffer[] mapped;
+  final boolean syncEachRequest;
+
+  MappedClientStore(MappedByteBuffer[] mapped, int limit, int categories, boolean recycle,
+  boolean syncEachRequest) {
+    super(mapped, limit, categories, recycle);
+    this.mapped = mapped;
+    this.syncEachRequest = syncEachRequest;
   }
-  public void run() {
-    // Number of requests for OS to queue
-    int queueLength = 6;
-    // Set port number for socket connection to Admin client
-    Socket socket;
 
-    // Create server socket (using port, queue length variables) to handle
-    // requests from admin client.
-    try {
-      ServerSocket serversocket = new ServerSocket(port, queueLength);
-      while(adminControlSwitch) {
-        // Socket accepts admin client connection and runs ModeWorker thread
-        // to toggle modes between Joke and Proverb for all clients connected
-        // to the server
-        socket = serversocket.accept();
-        new ModeWorker(socket).start();
-      }
-    } catch (IOException ioe) { System.out.println(ioe); }
+  // Opens the store file, creating it if needed. The capacity and categories
+  // must match the ones the file was created with.
+  static MappedClientStore open(File file, int capacity, int categories, boolean recycle,
+  String sync, long syncInterval) throws IOException {
+    int slotSize = slotSize(categories);
+    int segmentBytes = segmentBytes(capacity, slotSize);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    FileChannel channel = raf.getChannel();
+    boolean created = channel.size() == 0;
+    MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+    header.order(ByteOrder.LITTLE_ENDIAN);
+    if (created) {
+      header.putInt(0, MAGIC);
+      header.putInt(4, VERSION);
+      header.putInt(8, SEGMENTS);
+      header.putInt(12, segmentBytes);
+      header.putInt(16, slotSize);
+      header.putInt(20, capacity);
+      header.force();
+    }
+    else if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+      || header.getInt(8) != SEGMENTS) {
+      raf.close();
+      throw new IOException(file + " is not a client store file");
+    }
+    else if (header.getInt(16) != slotSize) {
+      raf.close();
+      throw new IOException(file + " was created with joke.store.categories="
+        + (header.getInt(16) - CYCLES) / 8 + ", not " + categories);
+    }
+    else if (header.getInt(20) != capacity) {
+      raf.close();
+      throw new IOException(file + " was created with joke.store.capacity="
+        + header.getInt(20) + ", not " + capacity);
+    }
+    MappedByteBuffer[] mapped = new MappedByteBuffer[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; i++) {
+      mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+        HEADER_SIZE + (long) i * segmentBytes, segmentBytes);
+    }
+    // The mapping stays valid after the channel is closed
+    raf.close();
+
+    final MappedClientStore store = new MappedClientStore(mapped,
+      segmentLimit(capacity), categories, recycle, sync.equals("request"));
+    System.out.println((created ? "Created " : "Loaded ") + store.size()
+      + " clients from " + file);
+    if (sync.equals("batch")) {
+      ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(
+        new ServerExecutor.NamedThreadFactory("joke-store-sync"));
+      syncer.scheduleWithFixedDelay(new Runnable() {
+        public void run() { store.sync(); }
+      }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+    }
+    // Whatever the policy, write everything out when the server exits
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      public void run() { store.sync(); }
+    }, "joke-store-shutdown"));
+    return store;
+  }
+
+  public int next(int uuid, int category, int count) {
+    int next = super.next(uuid, category, count);
+    if (syncEachRequest) {
+      int hash = ClientRegistry.hash(uuid);
+      mapped[hash & (SEGMENTS - 1)].force();
+    }
+    return next;
+  }
+
+  // Forces every segment's changes to the file.
+  void sync() {
+    for (MappedByteBuffer buffer : mapped) {
+      buffer.force();
+    }
   }
 }
 
-// Main class of JokeServer. Iniitalizes variables to store client data, and
-// map joke and proverb labels to full text. Launches asynchronous ModeServer
-// thread to connect to JokeClientAdmin, and listens for JokeClient socket
-// connection to run Worker thread. JokeServer can be launched with no argument
-// and with 'secondary' argument to run a second server.
-public class JokeServer {
-  public static void main(String args[]) throws IOException {
-    // Array list to hold client data so that it can grow as more new
-    // clients connect to the servers
-    ArrayList<ClientData> clientData = new ArrayList<ClientData>();
-    // Map objects that hold joke and proverb labels as keys and full text
-    // of corresponding jokes and proverbs as values for lookup
-    HashMap<String, String> jokesMap = new HashMap<String, String>();
-    HashMap<String, String> proverbsMap = new HashMap<String, String>();
-
-    String JokeA = "What happens to a frog's car when it breaks down? It gets toad away.";
-    String JokeB = "Why did the picture go to jail? Because it was framed.";
-    String JokeC = "What did the tie say to the hat? You go on ahead and I'll hang around!";
-    String JokeD = "Why do birds fly south for the winter? It's easier than walking!";
-    jokesMap.put("JA", JokeA);
-    jokesMap.put("JB", JokeB);
-    jokesMap.put("JC", JokeC);
-    jokesMap.put("JD", JokeD);
-
-    String ProverbA = "Comparison is the thief of joy.";
-    String ProverbB = "The best way out is always through.";
-    String ProverbC = "Better to light a candle than to curse the darkness.";
-    String ProverbD = "Fortune favors the brave.";
-    proverbsMap.put("PA", ProverbA);
-    proverbsMap.put("PB", ProverbB);
-    proverbsMap.put("PC", ProverbC);
-    proverbsMap.put("PD", ProverbD);
+// PartitionedClientStore spreads client state over the nodes of a cluster
+// so that any number of JokeServers can serve the same clients. Each uuid
+// belongs to one node, chosen by consistent hashing: every node is placed
+// at many points on a ring of hash values, and a uuid belongs to the first
+// node at or after the uuid's hash. A request for a client this node owns
+// goes to its local store; any other is forwarded to the owner's store
+// port, where the owner advances the client's cycle in its own local store.
+// Since only the owner ever holds a client's cycle, a client keeps its place
+// whichever server it asks, and cycles never repeat across servers.
+//
+// Every node must list the same members in joke.cluster. Forwarding uses a
+// small binary protocol (uuid, category and count as ints, answered with
+// the int result) over connections that are kept open and pooled per peer.
+// A peer that cannot be reached within the timeout is not tried again for
+// joke.cluster.retry milliseconds, and meanwhile its clients' requests fail
+// rather than go to another node: a cycle started there would repeat items
+// once the owner is back, with the cycle it still holds. Adding or removing
+// a node moves only the clients between it and its neighbours.
+// Forwarded requests are not authenticated, so the store port listens on
+// the loopback address only, unless joke.cluster.address opens it to the
+// other hosts of the cluster.
+class PartitionedClientStore implements ClientStore {
+  static final int POINTS = 64;            // ring points per node
+  static final int FAILED = -1;            // result when the owner's store failed
 
-    // Number of requests for OS to queue
-    int queueLength = 6;
-    // Set port number for socket connection
-    int port = 4545;
-    // Variable to hold default server name, used when no argument is provided
-    // in the command line
-    String serverName = "localhost";
-    Socket socket;
-    InetAddress inetAddress = InetAddress.getByName(serverName);
+  final ClientStore local;
+  final int self;                          // index of this node in members
+  final Peer[] peers;                      // null at self
+  final int[] ring;                        // sorted hash points
+  final int[] owners;                      // node at each ring point
+  final int timeout;
+  final long retry;
 
-    if (args.length > 0)  {
-      if(args[0].equals("secondary")) {
-        ModeServer modeServer = new ModeServer(5051);
-        Thread thread = new Thread(modeServer);
-        thread.start();
-        port = 4546;
-        System.out.println
-        ("Server two: " + serverName + ", port " + port);
-        // Create server socket (using queue length, port number, server name) to handle
-        // requests from client.
-        ServerSocket serversocket = new ServerSocket(port, queueLength, inetAddress);
-        // While loop runs continuously until terminating the console.
-        while(true) {
-          socket = serversocket.accept();
-          /* Create and executes a new Worker thread; passes in socket that accepted
-          a connection as the parameter. Worker thread will return JOKE or PROVERB
-          Results from lookup will be written to the socket, read by the client,
-          and displayed in client console. */
-          new Worker(socket, clientData, jokesMap, proverbsMap, true).start();
-        }
+  PartitionedClientStore(ClientStore local, List<InetSocketAddress> members, int self,
+  int timeout, long retry) {
+    this.local = local;
+    this.self = self;
+    this.timeout = timeout;
+    this.retry = retry;
+    peers = new Peer[members.size()];
+    for (int i = 0; i < peers.length; i++) {
+      if (i != self) {
+        peers[i] = new Peer(members.get(i));
       }
     }
-    else {
-      System.out.println
-      ("Server one: " + serverName + ", port " + port);
+    long[] points = new long[members.size() * POINTS];
+    for (int i = 0; i < members.size(); i++) {
+      InetSocketAddress member = members.get(i);
+      for (int p = 0; p < POINTS; p++) {
+        int point = mix((member.getHostString() + ":" + member.getPort() + "#" + p).hashCode());
+        // Sort by point, then by node, so every node builds the same ring
+        points[i * POINTS + p] = (long) point << 32 | i;
+      }
+    }
+    Arrays.sort(points);
+    ring = new int[points.length];
+    owners = new int[points.length];
+    for (int i = 0; i < points.length; i++) {
+      ring[i] = (int) (points[i] >> 32);
+      owners[i] = (int) points[i];
+    }
+  }
 
-      // "Create a Mode thread and send it off, asynchronously, to get MODE instructions"
-      ModeServer modeServer = new ModeServer(5050);
-      Thread thread = new Thread(modeServer);
-      thread.start();
+  // Joins the cluster in joke.cluster (host:storePort of every node, this
+  // one included) and starts serving forwarded requests on storePort. This
+  // node is the member on storePort unless joke.cluster.self names it.
+  static PartitionedClientStore start(ClientStore local, String cluster, int storePort)
+  throws IOException {
+    List<InetSocketAddress> members = new ArrayList<InetSocketAddress>();
+    String selfName = System.getProperty("joke.cluster.self");
+    int self = -1;
+    for (String member : cluster.split(",")) {
+      member = member.trim();
+      int colon = member.lastIndexOf(':');
+      InetSocketAddress address = InetSocketAddress.createUnresolved(member.substring(0, colon),
+        Integer.parseInt(member.substring(colon + 1)));
+      if (selfName != null ? selfName.equals(member) : address.getPort() == storePort) {
+        self = members.size();
+      }
+      members.add(address);
+    }
+    if (self < 0) {
+      throw new IOException("This server is not in joke.cluster=" + cluster);
+    }
+    PartitionedClientStore store = new PartitionedClientStore(local, members, self,
+      Integer.getInteger("joke.cluster.timeout", 1000),
+      Long.getLong("joke.cluster.retry", 5000L));
+    store.listen(members.get(self).getPort());
+    System.out.println("Cluster node " + (self + 1) + " of " + members.size()
+      + ", store port " + members.get(self).getPort());
+    return store;
+  }
+
+  public int next(int uuid, int category, int count) {
+    int node = owners[point(mix(uuid))];
+    if (node == self) {
+      return local.next(uuid, category, count);
+    }
+    // Only the owner holds the client's cycle, so the request fails while
+    // the owner is down (see above)
+    Peer peer = peers[node];
+    long now = System.currentTimeMillis();
+    if (now < peer.downUntil) {
+      throw new IllegalStateException("Cluster node " + peer + " is down");
+    }
+    int next;
+    try {
+      next = peer.next(uuid, category, count, timeout);
+    } catch (IOException ioe) {
+      peer.downUntil = now + retry;
+      JokeServer.log.info("Cluster node " + peer + " is unreachable: " + ioe);
+      throw new IllegalStateException("Cluster node " + peer + " is unreachable", ioe);
+    }
+    if (next == FAILED) {
+      throw new IllegalStateException("Client store of " + peer + " failed");
+    }
+    return next;
+  }
+
+  // Clients held by this node.
+  public int size() {
+    return local.size();
+  }
 
+  // Index of the first ring point at or after hash, wrapping to 0.
+  int point(int hash) {
+    int i = Arrays.binarySearch(ring, hash);
+    if (i < 0) {
+      i = -i - 1;
+    }
+    return i == ring.length ? 0 : i;
+  }
 
-      // Create server socket (using queue length, port number, server name) to handle
-      // requests from client.
-      ServerSocket serversocket = new ServerSocket(port, queueLength, inetAddress);
+  // Spreads uuids and member names over the ring (murmur3 finalizer).
+  static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    return h ^ (h >>> 16);
+  }
 
-      // While loop runs continuously until terminating the console.
-      while(true) {
-        // Listens for a connection to the socket, 'sock', and accepts the connection
-        socket = serversocket.accept();
-        /* Create and executes a new Worker thread; passes in socket that accepted
-        a connection as the parameter. Worker thread will return JOKE or PROVERB
-        Results from lookup will be written to the socket, read by the client,
-        and displayed in client console. */
-        new Worker(socket, clientData, jokesMap, proverbsMap, false).start();
+  // Accepts connections from other nodes and serves each on its own daemon
+  // thread; there are only a few per peer, and each lives as long as the
+  // peer does.
+  void listen(int port) throws IOException {
+    final ServerSocket server = new ServerSocket(port, 50,
+      ModeServer.bindAddress("joke.cluster.address"));
+    Thread acceptor = new Thread(new Runnable() {
+      public void run() {
+        while (true) {
+          try {
+            final Socket socket = server.accept();
+            socket.setTcpNoDelay(true);
+            Thread thread = new Thread(new Runnable() {
+              public void run() { serve(socket); }
+            }, "joke-cluster-" + socket.getPort());
+            thread.setDaemon(true);
+            thread.start();
+          } catch (IOException ioe) { JokeServer.log.info(ioe.toString()); }
+        }
+      }
+    }, "joke-cluster-accept");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  // Answers forwarded requests from a peer until it closes the connection.
+  void serve(Socket socket) {
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      while (true) {
+        int uuid = in.readInt();
+        int category = in.readInt();
+        int count = in.readInt();
+        int next;
+        try {
+          next = local.next(uuid, category, count);
+        } catch (RuntimeException re) {
+          next = FAILED;
+        }
+        out.writeInt(next);
+        // Peers wait for each answer, so flush once no more requests are queued
+        if (in.available() == 0) {
+          out.flush();
+        }
       }
+    } catch (EOFException eof) {
+      // Peer closed the connection
+    } catch (IOException ioe) {
+      JokeServer.log.info("Cluster connection closed: " + ioe);
     }
+    try { socket.close(); } catch (IOException ioe) { JokeServer.log.info(ioe.toString()); }
   }
 
-  // ENUM to hold JOKE or PROVERB mode
-  public enum Mode {
-    JOKE,
-    PROVERB
+  // Another node of the cluster, with a pool of open connections to it.
+  static final class Peer {
+    final InetSocketAddress address;
+    final ConcurrentLinkedQueue<Link> idle = new ConcurrentLinkedQueue<Link>();
+    volatile long downUntil;               // skip the peer until this time
+
+    Peer(InetSocketAddress address) {
+      this.address = address;
+    }
+
+    public String toString() {
+      return address.getHostString() + ":" + address.getPort();
+    }
+
+    // Forwards one request on a pooled connection. A connection that fails
+    // is dropped. The request is sent again on a new connection only if the
+    // pooled one was found closed (see Link.closed); after a timeout the
+    // peer may have advanced the cycle already, and a second request would
+    // skip an item.
+    int next(int uuid, int category, int count, int timeout) throws IOException {
+      Link link = idle.poll();
+      if (link != null) {
+        try {
+          int next = link.next(uuid, category, count);
+          idle.add(link);
+          return next;
+        } catch (IOException ioe) {
+          link.close();
+          if (!Link.closed(ioe)) {
+            throw ioe;
+          }
+        }
+      }
+      link = new Link(new InetSocketAddress(address.getHostString(), address.getPort()), timeout);
+      try {
+        int next = link.next(uuid, category, count);
+        idle.add(link);
+        return next;
+      } catch (IOException ioe) {
+        link.close();
+        throw ioe;
+      }
+    }
   }
 
-  public static Mode mode = Mode.JOKE;
+  // One open connection to a peer, used by one request at a time.
+  static final class Link {
+    final Socket socket = new Socket();
+    final DataInputStream in;
+    final DataOutputStream out;
+
+    Link(InetSocketAddress address, int timeout) throws IOException {
+      try {
+        socket.connect(address, timeout);
+        socket.setSoTimeout(timeout);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      } catch (IOException ioe) {
+        close();
+        throw ioe;
+      }
+    }
+
+    int next(int uuid, int category, int count) throws IOException {
+      out.writeInt(uuid);
+      out.writeInt(category);
+      out.writeInt(count);
+      out.flush();
+      return in.readInt();
+    }
+
+    // True if a request failed because the connection had been closed: the
+    // write failed, or the peer closed or reset it without answering, which
+    // it only does when it goes away, so it did not take the request. A
+    // peer that dies between taking a request and answering it is the one
+    // case where a sent-again request skips an item.
+    static boolean closed(IOException ioe) {
+      return ioe instanceof EOFException || ioe instanceof SocketException;
+    }
+
+    void close() {
+      try { socket.close(); } catch (IOException ioe) { }
+    }
+  }
+}
+
+// Catalog holds everything the server can send: categories of items (JOKE,
+// PROVERB and any others), each item a label line and a text line. It is
+// kept in one compact indexed binary format, whether it was loaded from a
+// text file or mapped from a compiled .jcat file:
+//
+//   header      magic "JCAT", version, number of categories, 0
+//   categories  per category: name offset (long), name length, item count,
+//               index offset (long)
+//   per category, its name in UTF-8, an index of count + 1 offsets (longs)
+//   and its records; record i is the bytes from index[i] up to index[i + 1],
+//   the label and text lines exactly as they are sent ("JA\ntext\n").
+//
+// All numbers are little-endian. A compiled catalog is memory-mapped, so a
+// catalog of hundreds of thousands of items is served straight from the
+// page cache without being read into the heap; the text format is parsed
+// line by line into the same layout. A Catalog never changes once built:
+// reloading builds a new one (see CatalogWatcher).
+//
+// The text format is one item per line, CATEGORY<TAB>LABEL<TAB>text, with
+// blank lines and lines starting with # ignored. Categories are numbered in
+// the order they first appear.
+class Catalog {
+  static final Charset UTF8 = Charset.forName("UTF-8");
+  static final int MAGIC = 0x4A434154;     // "JCAT"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 16;
+  static final int ENTRY_SIZE = 24;
+  static final byte[] SECONDARY = encode("<S2> ");
+
+  // Served when no catalog file is found
+  static final String BUILT_IN =
+    "JOKE\tJA\tWhat happens to a frog's car when it breaks down? It gets toad away.\n"
+    + "JOKE\tJB\tWhy did the picture go to jail? Because it was framed.\n"
+    + "JOKE\tJC\tWhat did the tie say to the hat? You go on ahead and I'll hang around!\n"
+    + "JOKE\tJD\tWhy do birds fly south for the winter? It's easier than walking!\n"
+    + "PROVERB\tPA\tComparison is the thief of joy.\n"
+    + "PROVERB\tPB\tThe best way out is always through.\n"
+    + "PROVERB\tPC\tBetter to light a candle than to curse the darkness.\n"
+    + "PROVERB\tPD\tFortune favors the brave.\n";
+
+  final ByteBuffer buffer;       // the whole catalog in the binary format
+  final String[] names;
+  final int[] counts;
+  final int[] indexes;           // buffer offset of each category's index
+  final byte[][] failed;         // "Failed in attempt to send NAME." lines
+  final byte[] prefix;           // written before each label line
+  DeflatedCatalog deflated;      // compressed items, set before the catalog is served
+
+  Catalog(ByteBuffer buffer, boolean secondary) throws IOException {
+    this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+      || buffer.getInt(4) != VERSION) {
+      throw new IOException("Not a catalog");
+    }
+    int categories = buffer.getInt(8);
+    if (categories <= 0 || HEADER_SIZE + (long) categories * ENTRY_SIZE > buffer.capacity()) {
+      throw new IOException("Catalog has no categories");
+    }
+    names = new String[categories];
+    counts = new int[categories];
+    indexes = new int[categories];
+    failed = new byte[categories][];
+    for (int c = 0; c < categories; c++) {
+      int entry = HEADER_SIZE + c * ENTRY_SIZE;
+      byte[] name = new byte[buffer.getInt(entry + 8)];
+      ByteBuffer view = buffer.duplicate();
+      view.position((int) buffer.getLong(entry));
+      view.get(name);
+      names[c] = new String(name, UTF8);
+      counts[c] = buffer.getInt(entry + 12);
+      indexes[c] = (int) buffer.getLong(entry + 16);
+      // Checking the last offset of the index covers the whole category
+      if (counts[c] <= 0 || indexes[c] + 8L * (counts[c] + 1) > buffer.capacity()
+        || buffer.getLong(indexes[c] + 8 * counts[c]) > buffer.capacity()) {
+        throw new IOException("Catalog category " + names[c] + " is truncated");
+      }
+      failed[c] = encode("Failed in attempt to send " + names[c] + ".\n");
+    }
+    prefix = secondary ? SECONDARY : new byte[0];
+  }
+
+  // Reads a catalog file: mapped if it is in the binary format, otherwise
+  // parsed as text.
+  static Catalog load(File file, boolean secondary) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      channel.read(magic, 0);
+      if (magic.position() == 4 && magic.getInt(0) == MAGIC) {
+        if (channel.size() > Integer.MAX_VALUE) {
+          throw new IOException(file + " is larger than 2 GB");
+        }
+        // The mapping stays valid after the channel is closed
+        return new Catalog(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+          secondary);
+      }
+    } finally {
+      raf.close();
+    }
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+    try {
+      return new Catalog(ByteBuffer.wrap(compile(in)), secondary);
+    } finally {
+      in.close();
+    }
+  }
+
+  // The catalog of the four jokes and four proverbs built into the server.
+  static Catalog builtIn(boolean secondary) throws IOException {
+    return new Catalog(ByteBuffer.wrap(compile(new BufferedReader(new StringReader(BUILT_IN)))),
+      secondary);
+  }
+
+  // Converts a text catalog to the binary format, so that large catalogs can
+  // be mapped instead of parsed at every start and reload.
+  static void compile(File text, File binary) throws IOException {
+    Catalog catalog = load(text, false);
+    FileOutputStream out = new FileOutputStream(binary);
+    try {
+      out.getChannel().write(catalog.buffer.duplicate());
+    } finally {
+      out.close();
+    }
+    System.out.println("Compiled " + catalog.items() + " items in " + catalog.size()
+      + " categories to " + binary);
+  }
+
+  // Parses the text format one line at a time into the binary format.
+  static byte[] compile(BufferedReader in) throws IOException {
+    LinkedHashMap<String, Builder> categories = new LinkedHashMap<String, Builder>();
+    String line;
+    int number = 0;
+    while ((line = in.readLine()) != null) {
+      number++;
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      int label = line.indexOf('\t');
+      int text = label < 0 ? -1 : line.indexOf('\t', label + 1);
+      if (text < 0) {
+        throw new IOException("Catalog line " + number + " is not CATEGORY<TAB>LABEL<TAB>text");
+      }
+      String name = line.substring(0, label);
+      Builder builder = categories.get(name);
+      if (builder == null) {
+        builder = new Builder(encode(name));
+        categories.put(name, builder);
+      }
+      builder.add(encode(line.substring(label + 1, text) + "\n" + line.substring(text + 1) + "\n"));
+    }
+    if (categories.isEmpty()) {
+      throw new IOException("Catalog is empty");
+    }
+    long size = HEADER_SIZE + (long) categories.size() * ENTRY_SIZE;
+    for (Builder builder : categories.values()) {
+      size += builder.name.length + 8L * (builder.count + 1) + builder.data.size();
+    }
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("Catalog is larger than 2 GB");
+    }
+    ByteBuffer out = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+    out.putInt(MAGIC).putInt(VERSION).putInt(categories.size()).putInt(0);
+    int position = HEADER_SIZE + categories.size() * ENTRY_SIZE;
+    for (Builder builder : categories.values()) {
+      out.putLong(position).putInt(builder.name.length).putInt(builder.count);
+      position += builder.name.length;
+      out.putLong(position);
+      position += 8 * (builder.count + 1) + builder.data.size();
+    }
+    for (Builder builder : categories.values()) {
+      out.put(builder.name);
+      long records = out.position() + 8L * (builder.count + 1);
+      for (int i = 0; i <= builder.count; i++) {
+        out.putLong(records + builder.offsets[i]);
+      }
+      out.put(builder.data.toByteArray());
+    }
+    return out.array();
+  }
+
+  // Records of one category while a text catalog is parsed.
+  static final class Builder {
+    final byte[] name;
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    int[] offsets = new int[16];   // start of each record in data, then the end
+    int count;
+
+    Builder(byte[] name) { this.name = name; }
+
+    void add(byte[] record) {
+      data.write(record, 0, record.length);
+      if (count + 2 > offsets.length) {
+        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+      }
+      offsets[++count] = data.size();
+    }
+  }
+
+  // Number of categories.
+  int size() {
+    return names.length;
+  }
+
+  String name(int category) {
+    return names[category];
+  }
+
+  // Number of items in a category.
+  int count(int category) {
+    return counts[category];
+  }
+
+  // Number of items in all categories.
+  long items() {
+    long items = 0;
+    for (int count : counts) {
+      items += count;
+    }
+    return items;
+  }
+
+  // The category a server mode selects; modes beyond the catalog, as after a
+  // reload with fewer categories, select the first one.
+  int category(int mode) {
+    return mode >= 0 && mode < names.length ? mode : 0;
+  }
+
+  // The label and text lines of an item, as a view of the catalog buffer.
+  ByteBuffer record(int category, int item) {
+    int index = indexes[category] + 8 * item;
+    ByteBuffer record = buffer.duplicate();
+    record.limit((int) buffer.getLong(index + 8));
+    record.position((int) buffer.getLong(index));
+    return record;
+  }
+
+  // Bytes in an item's record.
+  int length(int category, int item) {
+    int index = indexes[category] + 8 * item;
+    return (int) (buffer.getLong(index + 8) - buffer.getLong(index));
+  }
+
+  // The label of an item, the first line of its record.
+  String label(int category, int item) {
+    ByteBuffer record = record(category, item);
+    int end = record.position();
+    while (end < record.limit() && record.get(end) != '\n') {
+      end++;
+    }
+    byte[] label = new byte[end - record.position()];
+    record.get(label);
+    return new String(label, UTF8);
+  }
+
+  // Writes an item, with the secondary server's prefix, to out.
+  void write(int category, int item, OutputStream out) throws IOException {
+    ByteBuffer record = record(category, item);
+    out.write(prefix);
+    if (record.hasArray()) {
+      out.write(record.array(), record.arrayOffset() + record.position(), record.remaining());
+      return;
+    }
+    byte[] scratch = SCRATCH.get();
+    while (record.hasRemaining()) {
+      int n = Math.min(record.remaining(), scratch.length);
+      record.get(scratch, 0, n);
+      out.write(scratch, 0, n);
+    }
+  }
+
+  // Per-thread buffer for copying mapped records to streams
+  static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+    protected byte[] initialValue() { return new byte[4096]; }
+  };
+
+  byte[] failed(int category) {
+    return failed[category];
+  }
+
+  static byte[] encode(String text) {
+    return text.getBytes(UTF8);
+  }
+}
+
+// DeflatedCatalog is every item of a catalog compressed once, when the
+// catalog is loaded, for clients that ask for compressed replies (see
+// BinaryProtocol), so the server never compresses per request. Each item,
+// with the secondary prefix, is its own zlib stream so that any item can be
+// sent alone, and all of them share a preset dictionary of text sampled
+// from the catalog: replies are short, but much of what they say is in the
+// dictionary, which a client fetches once and keeps. The zlib header names
+// the dictionary by its Adler-32 checksum, which is also its id here.
+class DeflatedCatalog {
+  static final int WINDOW = 32768;       // deflate looks back no further
+
+  final byte[] dictionary;
+  final int id;                          // Adler-32 of the dictionary
+  final byte[][] data;                   // per category, the items' streams in order
+  final int[][] offsets;                 // per category, start of each item, then the end
+
+  DeflatedCatalog(Catalog catalog, int dictionarySize) {
+    dictionary = sample(catalog, Math.min(dictionarySize, WINDOW));
+    java.util.zip.Adler32 adler = new java.util.zip.Adler32();
+    adler.update(dictionary, 0, dictionary.length);
+    id = (int) adler.getValue();
+    data = new byte[catalog.size()][];
+    offsets = new int[catalog.size()][];
+    java.util.zip.Deflater deflater = new java.util.zip.Deflater(java.util.zip.Deflater.BEST_COMPRESSION);
+    byte[] chunk = new byte[4096];
+    ByteArrayOutputStream item = new ByteArrayOutputStream();
+    for (int c = 0; c < catalog.size(); c++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      offsets[c] = new int[catalog.count(c) + 1];
+      for (int i = 0; i < catalog.count(c); i++) {
+        item.reset();
+        item.write(catalog.prefix, 0, catalog.prefix.length);
+        ByteBuffer record = catalog.record(c, i);
+        while (record.hasRemaining()) {
+          int n = Math.min(chunk.length, record.remaining());
+          record.get(chunk, 0, n);
+          item.write(chunk, 0, n);
+        }
+        deflater.reset();
+        deflater.setDictionary(dictionary);
+        deflater.setInput(item.toByteArray());
+        deflater.finish();
+        while (!deflater.finished()) {
+          out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        offsets[c][i + 1] = out.size();
+      }
+      data[c] = out.toByteArray();
+    }
+    deflater.end();
+  }
+
+  // Up to size bytes of the catalog's records, taken evenly from every
+  // category; with a small catalog that is the whole of it. The prefix goes
+  // last, where matches are cheapest.
+  static byte[] sample(Catalog catalog, int size) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int budget = size - catalog.prefix.length;
+    for (int c = 0; c < catalog.size() && budget > 0; c++) {
+      int share = budget / (catalog.size() - c);
+      int taken = 0;
+      int step = Math.max(1, (int) ((long) catalog.length(c, 0) * catalog.count(c) / Math.max(1, share)));
+      for (int i = 0; i < catalog.count(c) && taken < share; i += step) {
+        ByteBuffer record = catalog.record(c, i);
+        int n = Math.min(record.remaining(), share - taken);
+        byte[] bytes = new byte[n];
+        record.get(bytes);
+        out.write(bytes, 0, n);
+        taken += n;
+      }
+      budget -= taken;
+    }
+    out.write(catalog.prefix, 0, catalog.prefix.length);
+    return out.toByteArray();
+  }
+
+  int length(int category, int item) {
+    return offsets[category][item + 1] - offsets[category][item];
+  }
+
+  void write(int category, int item, OutputStream out) throws IOException {
+    out.write(data[category], offsets[category][item], length(category, item));
+  }
+
+  ByteBuffer record(int category, int item) {
+    return ByteBuffer.wrap(data[category], offsets[category][item], length(category, item));
+  }
+}
+
+// CatalogWatcher holds the catalog being served and replaces it when its file
+// changes. Requests read the current catalog once and use it to the end, and
+// a reload builds the new catalog completely before one volatile write
+// swaps it in, so serving never pauses and no request sees half a catalog.
+// A mapped catalog that was replaced is unmapped by the garbage collector
+// once no request uses it; replace a compiled catalog by renaming a new file
+// over it rather than rewriting it in place.
+class CatalogWatcher {
+  // Compress every item at load for clients that ask for compression
+  // (joke.deflate, default false: it takes some 30 microseconds an item),
+  // with a preset dictionary of joke.deflate.dictionary bytes (default 8192,
+  // at most 32768) sampled from the catalog
+  static final boolean DEFLATE = Boolean.getBoolean("joke.deflate");
+  static final int DICTIONARY = Integer.getInteger("joke.deflate.dictionary", 8192);
+
+  final File file;                 // null for the built-in catalog
+  final boolean secondary;
+  volatile Catalog catalog;
+  long modified;
+  long length;
+
+  CatalogWatcher(File file, boolean secondary) throws IOException {
+    this.file = file;
+    this.secondary = secondary;
+    if (file == null) {
+      catalog = deflate(Catalog.builtIn(secondary));
+    } else {
+      modified = file.lastModified();
+      length = file.length();
+      catalog = deflate(Catalog.load(file, secondary));
+    }
+  }
+
+  // Opens the catalog named by joke.catalog (default jokes.txt), falling
+  // back to the built-in jokes and proverbs when the default file is
+  // missing, and polls it for changes every joke.catalog.reload seconds
+  // (default 5, 0 to never reload).
+  static CatalogWatcher fromProperties(boolean secondary) throws IOException {
+    String name = System.getProperty("joke.catalog");
+    File file = new File(name != null ? name : "jokes.txt");
+    if (name == null && !file.exists()) {
+      System.out.println("No jokes.txt, serving the built-in jokes and proverbs.");
+      return new CatalogWatcher(null, secondary);
+    }
+    CatalogWatcher watcher = new CatalogWatcher(file, secondary);
+    System.out.println("Loaded " + watcher.describe());
+    int reload = Integer.getInteger("joke.catalog.reload", 5);
+    if (reload > 0) {
+      watcher.startPolling(reload);
+    }
+    return watcher;
+  }
+
+  Catalog get() {
+    return catalog;
+  }
+
+  // Compresses a newly loaded catalog's items if compression is on, before
+  // the catalog is published to the threads serving it.
+  static Catalog deflate(Catalog catalog) {
+    if (DEFLATE) {
+      catalog.deflated = new DeflatedCatalog(catalog, DICTIONARY);
+    }
+    return catalog;
+  }
+
+  // Loads the file again and swaps the new catalog in. If it cannot be
+  // loaded the old catalog stays in service.
+  synchronized boolean reload() {
+    if (file == null) {
+      return false;
+    }
+    try {
+      modified = file.lastModified();
+      length = file.length();
+      catalog = deflate(Catalog.load(file, secondary));
+      JokeServer.log.info("Reloaded " + describe());
+      return true;
+    } catch (IOException ioe) {
+      JokeServer.log.info("Catalog reload failed, still serving the old one: " + ioe);
+      return false;
+    }
+  }
+
+  // Reloads if the file's time or size changed since it was last loaded.
+  synchronized void check() {
+    if (file.lastModified() != modified || file.length() != length) {
+      reload();
+    }
+  }
+
+  void startPolling(int seconds) {
+    Executors.newSingleThreadScheduledExecutor(
+      new ServerExecutor.NamedThreadFactory("joke-catalog-reload"))
+      .scheduleWithFixedDelay(new Runnable() {
+        public void run() { check(); }
+      }, seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  String describe() {
+    Catalog current = catalog;
+    return "catalog " + file + ": " + current.items() + " items in "
+      + current.size() + " categories";
+  }
+}
+
+// Worker class definition, implements Runnable so that each accepted client
+// connection can be submitted to the server's ServerExecutor and run there.
+class Worker implements Runnable {
+  Socket socket;                      // socket connection to client
+  ClientStore clients;                // Store to look up client state by uuid
+  CatalogWatcher catalogs;            // Catalog of replies to look up by label
+  volatile boolean idle;              // waiting for a keep-alive request
+  volatile boolean requested;         // has sent one, so is not just starting
+
+  Worker (Socket sock, ClientStore cd, CatalogWatcher cw) {
+    socket = sock;
+    clients = cd;
+    catalogs = cw;
+  }
+
+  // First line sent by clients that keep one connection open for many requests
+  static final String KEEPALIVE = "KEEPALIVE";
+  // Milliseconds a keep-alive connection may wait for its next request; it
+  // holds a pool thread meanwhile, so this is short
+  static final int IDLE_TIMEOUT = Integer.getInteger("joke.idleTimeout", 5000);
+  // Optional line before the uuid asking for the next n jokes or proverbs
+  static final String BATCH = "BATCH ";
+  // Largest batch served for one request, larger requests are cut to this
+  static final int MAX_BATCH = Integer.getInteger("joke.maxBatch", 1000);
+
+  // Items sent for a batch request of count, the same on every front end:
+  // at least one, at most MAX_BATCH.
+  static int batchSize(long count) {
+    return (int) Math.max(1, Math.min(count, MAX_BATCH));
+  }
+
+  // A number from a request line. Anything else is a bad request, which
+  // ends the connection like a read error.
+  static int parse(String line) throws IOException {
+    if(line == null) {
+      throw new EOFException("Connection closed in a request");
+    }
+    try {
+      return Integer.parseInt(line.trim());
+    } catch(NumberFormatException nfe) {
+      throw new IOException("Bad request line: " + line);
+    }
+  }
+
+  public void run() {
+    JokeServer.metrics.active.increment();
+    JokeServer.shutdown.workers.add(this);
+    try {
+      serveConnection();
+    } finally {
+      JokeServer.shutdown.workers.remove(this);
+      JokeServer.metrics.active.decrement();
+    }
+  }
+
+  // Reads the first line of the next request on a keep-alive connection.
+  // Once the server is shutting down it returns null instead of waiting for
+  // one, so the connection is closed between requests; a Worker already
+  // waiting has its input shut down by Shutdown, which ends the read. A
+  // client that has not sent a request yet is about to, and is waited for.
+  String nextLine(BufferedReader in) throws IOException {
+    idle = true;
+    try {
+      if(JokeServer.shutdown.draining && requested && !in.ready()) {
+        return null;
+      }
+      String line = in.readLine();
+      requested = true;
+      return line;
+    } finally {
+      idle = false;
+    }
+  }
+
+  // The same for binary request frames.
+  boolean nextFrame(InputStream in, ByteBuffer request) throws IOException {
+    idle = true;
+    try {
+      if(JokeServer.shutdown.draining && requested && in.available() == 0) {
+        return false;
+      }
+      boolean read = BinaryProtocol.readFrame(in, request);
+      requested = true;
+      return read;
+    } finally {
+      idle = false;
+    }
+  }
+
+  void serveConnection() {
+
+    // Initialize local variables to send data through and read from the socket.
+    PrintStream out = null;
+    BufferedReader in = null;
+
+    try {
+      // Buffered so that the first byte can be looked at and put back
+      InputStream input = new BufferedInputStream(socket.getInputStream());
+      // Instantiate 'out' to write to the PrintStream to send JOKE or PROVERB
+      // through the socket to the client.
+      // It is buffered so that replies to pipelined requests go out together.
+      out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()));
+
+      try {
+        // A client that speaks the binary protocol sends its magic byte
+        // first; no line of the text protocol starts with it
+        input.mark(1);
+        int magic = input.read();
+        if(magic == BinaryProtocol.MAGIC || magic == BinaryProtocol.DEFLATE_MAGIC) {
+          serveBinary(input, out, magic == BinaryProtocol.DEFLATE_MAGIC);
+          out.flush();
+          return;
+        }
+        input.reset();
+        // Instantiate 'in' to read input from the client through the socket.
+        in = new BufferedReader(new InputStreamReader(input));
+        String firstLine = in.readLine();
+        // A client that opts in to keep-alive sends KEEPALIVE first, then any
+        // number of requests on the same connection. The connection is served
+        // until the client closes it or stays idle for longer than the idle
+        // timeout, or the server shuts down. Clients may pipeline requests
+        // without waiting for replies; they are answered in order, and
+        // replies are flushed once no more requests are waiting to be read.
+        if(KEEPALIVE.equals(firstLine)) {
+          socket.setSoTimeout(IDLE_TIMEOUT);
+          // Without a thread to spare, only the requests already sent are
+          // served (see ServerExecutor.keepAlive)
+          ServerExecutor workers = JokeServer.metrics.workers;
+          boolean kept = workers == null || workers.keepAlive();
+          try {
+            String line;
+            while((line = nextLine(in)) != null) {
+              serveRequest(line, in, out);
+              if(!in.ready()) {
+                out.flush();
+                if(!kept) {
+                  JokeServer.metrics.keepAliveRefused.increment();
+                  break;
+                }
+              }
+            }
+          } catch(SocketTimeoutException ste) {
+            // Client was idle too long, fall through and close the connection
+          } finally {
+            if(kept && workers != null) {
+              workers.keptAlive();
+            }
+          }
+        }
+        // Otherwise this is a one-shot request
+        else if(firstLine != null) {
+          serveRequest(firstLine, in, out);
+        }
+        out.flush();
+
+      } catch(IOException x) {
+        JokeServer.log.error("Server read error.", x);
+      } catch(RuntimeException re) {
+        // A bad request or a bug ends this connection, not the thread
+        JokeServer.log.error("Server error.", re);
+      }
+    } catch(IOException ioe) { JokeServer.log.info(ioe.toString());
+    } finally {
+      // Closes this socket connection.
+      try {
+        socket.close();
+      } catch(IOException ioe) { JokeServer.log.info(ioe.toString()); }
+    }
+  }
+
+  // Serves one request whose first line has been read. A request is the uuid
+  // line and the name line, optionally preceded by a "BATCH n" line. n is
+  // cut to 1..MAX_BATCH (see batchSize), and a line that is not a number
+  // closes the connection, as on the NIO front end.
+  void serveRequest(String line, BufferedReader in, PrintStream out) throws IOException {
+    int count = -1;
+    if(line.startsWith(BATCH)) {
+      count = batchSize(parse(line.substring(BATCH.length())));
+      line = in.readLine();
+    }
+    int uuid = parse(line); // parse int uuid passed from JokeClient
+    in.readLine(); // name line, not used by the server
+    if(!JokeServer.admission.allow(uuid)) {
+      if(count >= 0) {
+        out.println(BATCH + 1);
+      }
+      out.write(Admission.LIMITED);
+      return;
+    }
+
+    // Serve one item, or a batch, of the category the server's mode selects
+    // (JOKE, PROVERB, ...), and count the request with its service time
+    long start = System.nanoTime();
+    Catalog catalog = catalogs.get();
+    int category = catalog.category(JokeServer.mode.get());
+    int item;
+    if(count < 0) {
+      item = printJokeOrProverb(out, clients, uuid, catalog, category);
+    }
+    else {
+      item = serveBatch(out, uuid, count, catalog, category);
+    }
+    long time = System.nanoTime() - start;
+    int items = count < 0 ? 1 : count;
+    JokeServer.metrics.request(category, items, time);
+    JokeServer.log.access(uuid, catalog, category, item, items, time);
+  }
+
+  // Serves binary request frames (see BinaryProtocol) until the client
+  // closes the connection, stays idle for longer than the idle timeout or
+  // the server shuts down.
+  // The uuid and count are read straight from the frame's bytes, and each
+  // reply is a small header followed by the item's record from the catalog,
+  // or its precompressed stream if the client asked for compression.
+  void serveBinary(InputStream in, PrintStream out, boolean deflate) throws IOException {
+    socket.setSoTimeout(IDLE_TIMEOUT);
+    ByteBuffer request = ByteBuffer.allocate(BinaryProtocol.REQUEST_SIZE);
+    ByteBuffer header = ByteBuffer.allocate(BinaryProtocol.REPLY_HEADER);
+    // A binary connection is kept alive like a text one that asked for it
+    ServerExecutor workers = JokeServer.metrics.workers;
+    boolean kept = workers == null || workers.keepAlive();
+    try {
+      int dictionary = 0;    // the dictionary the client has
+      if(deflate) {
+        BinaryProtocol.readFully(in, request.array(), 4, false);
+        dictionary = request.getInt(0);
+      }
+      while(nextFrame(in, request)) {
+        if(request.limit() < BinaryProtocol.REQUEST_SIZE) {
+          throw new IOException("Short binary request");
+        }
+        long start = System.nanoTime();
+        int uuid = request.getInt(0);
+        int count = BinaryProtocol.count(request);
+        Catalog catalog = catalogs.get();
+        int category = catalog.category(JokeServer.mode.get());
+        if(!JokeServer.admission.allow(uuid)) {
+          BinaryProtocol.writeLimited(out, header, category);
+          if(in.available() == 0) {
+            out.flush();
+            if(!kept) {
+              break;
+            }
+          }
+          continue;
+        }
+        DeflatedCatalog deflated = deflate ? catalog.deflated : null;
+        if(deflate && BinaryProtocol.dictionary(deflated) != dictionary) {
+          BinaryProtocol.writeDictionary(out, header, deflated);
+          dictionary = BinaryProtocol.dictionary(deflated);
+        }
+        int first = -1;
+        for(int i = 0; i < count; i++) {
+          int item = BinaryProtocol.writeReply(out, header, clients, uuid, catalog,
+            dictionary != 0 ? deflated : null, category, count - 1 - i);
+          first = i == 0 ? item : first;
+        }
+        long time = System.nanoTime() - start;
+        JokeServer.metrics.request(category, count, time);
+        JokeServer.log.access(uuid, catalog, category, first, count, time);
+        if(in.available() == 0) {
+          out.flush();
+          if(!kept) {
+            JokeServer.metrics.keepAliveRefused.increment();
+            break;
+          }
+        }
+      }
+    } catch(SocketTimeoutException ste) {
+      // Client was idle too long, close the connection
+    } finally {
+      if(kept && workers != null) {
+        workers.keptAlive();
+      }
+    }
+  }
+
+  // Sends the next count items from the client's cycle in one reply: a
+  // "BATCH count" line, then the usual two lines for each one. The cycle is
+  // advanced, completed and reshuffled exactly as for single requests, and
+  // the whole batch comes from the same catalog and category. Returns the
+  // first item sent, -1 if there was none.
+  int serveBatch(PrintStream out, int uuid, int count, Catalog catalog, int category) {
+    out.println(BATCH + count);
+    int first = -1;
+    for(int i = 0; i < count; i++) {
+      int item = printJokeOrProverb(out, clients, uuid, catalog, category);
+      first = i == 0 ? item : first;
+    }
+    return first;
+  }
+
+  // Writes the next joke, proverb or other item of category to the
+  // PrintStream to send data/text to the client through the socket.
+  // This text will be read by the client, printed/displayed in the client console
+  // Returns the item sent, or -1 if it failed.
+  static int printJokeOrProverb(PrintStream out, ClientStore clients, int uuid,
+  Catalog catalog, int category) {
+    try {
+
+      // Take the next item from the client's cycle through the category
+      int item = nextLabel(clients, uuid, catalog, category);
+
+      // Write the item's label and text lines, stored in the catalog in the
+      // format they are sent in (with <S2> first if this JokeServer is
+      // marked as secondary), to the output stream.
+      catalog.write(category, item, out);
+      return item;
+
+    } catch(Exception e) {
+      // If server lookup of the item fails, display error message in client console.
+      byte[] failed = catalog.failed(category);
+      out.write(failed, 0, failed.length);
+      return -1;
+    }
+  }
+
+  // Takes the next item index from the client's cycle through category,
+  // adding the client to the store if this is its first request. If that
+  // was the last item of the cycle, print Cycle Completed message; the
+  // store has already started a new, reshuffled cycle.
+  static int nextLabel(ClientStore clients, int uuid, Catalog catalog, int category) {
+    int next = clients.next(uuid, category, catalog.count(category));
+    if((next & ClientStore.COMPLETED) != 0) {
+      JokeServer.metrics.completed(category);
+      JokeServer.log.completed(catalog, category);
+    }
+    return next & ~ClientStore.COMPLETED;
+  }
+}
+
+// BinaryProtocol is the optional compact framing of the joke and admin
+// ports. A client chooses it by sending the MAGIC byte first, which cannot
+// start a line of the text protocol, and then sends frames until it closes
+// the connection, so binary connections are always kept alive. A frame is
+// a 4-byte length and then that many bytes of payload. Numbers are
+// big-endian, text is UTF-8.
+//
+// A client that wants compressed replies sends DEFLATE_MAGIC instead, and
+// then the id of the preset dictionary it already has (int, 0 if none).
+// Bodies of its joke replies are then the item's zlib stream, compressed
+// when the catalog was loaded (see DeflatedCatalog), as long as the last
+// dictionary frame it was sent has an id other than 0. The server sends a
+// dictionary frame before a reply whenever the catalog's dictionary is not
+// the one the client has, as after a reload; id 0 and no body means
+// bodies are plain, because the server was not started with joke.deflate.
+// Failed items are always plain.
+//
+//  joke request   uuid (int), count (unsigned short), name (ignored)
+//  joke reply     category (byte), remaining (unsigned short), item (int),
+//                 body: the label line and text line as in the text
+//                 protocol, with <S2> first on the secondary
+//  dictionary     category 255, remaining 0, the dictionary id as item,
+//                 body: the dictionary
+//  admin request  op (byte: 0 toggle, 1 set, 2 mode), name or number to set
+//  admin reply    category (byte), version (int), name; category 255 and
+//                 the error as name if the command failed
+//
+// A joke request for count items is answered with count reply frames (at
+// least 1, at most joke.maxBatch), in which remaining counts the frames
+// still to come, 0 on the last. An item that failed has item -1 and the
+// failure message as its body.
+class BinaryProtocol {
+  static final int MAGIC = 0xB7;
+  static final int DEFLATE_MAGIC = 0xB8;
+  static final int DICTIONARY = 255;          // category of a dictionary frame
+  static final int REQUEST_SIZE = 6;          // uuid and count
+  static final int REPLY_HEADER = 11;         // length, category, remaining, item
+  static final int MAX_FRAME = 1024;          // longest request accepted
+  static final int TOGGLE = 0, SET = 1, MODE = 2;
+  static final int FAILED = 255;              // category of a failed admin reply
+
+  // Reads one frame into buffer, which is left holding as much of the
+  // payload as fits, from position 0; the rest is skipped. Returns false at
+  // the end of the stream before a frame.
+  static boolean readFrame(InputStream in, ByteBuffer buffer) throws IOException {
+    byte[] bytes = buffer.array();
+    buffer.clear();
+    if(!readFully(in, bytes, 4, true)) {
+      return false;
+    }
+    int length = buffer.getInt(0);
+    if(length < 0 || length > MAX_FRAME) {
+      throw new IOException("Bad binary frame length " + length);
+    }
+    int kept = Math.min(length, bytes.length);
+    readFully(in, bytes, kept, false);
+    for(long skip = length - kept; skip > 0; ) {
+      long skipped = in.skip(skip);
+      if(skipped <= 0) {
+        throw new EOFException("Connection closed in a frame");
+      }
+      skip -= skipped;
+    }
+    buffer.limit(kept);
+    return true;
+  }
+
+  // Reads n bytes into bytes. Returns false if the stream ended before the
+  // first byte and that is allowed.
+  static boolean readFully(InputStream in, byte[] bytes, int n, boolean endAllowed)
+  throws IOException {
+    for(int read = 0; read < n; ) {
+      int r = in.read(bytes, read, n - read);
+      if(r < 0) {
+        if(read == 0 && endAllowed) {
+          return false;
+        }
+        throw new EOFException("Connection closed in a frame");
+      }
+      read += r;
+    }
+    return true;
+  }
+
+  // Items to send for a request frame.
+  static int count(ByteBuffer request) {
+    return Worker.batchSize(request.getShort(4) & 0xFFFF);
+  }
+
+  static void putReplyHeader(ByteBuffer out, int category, int remaining, int item,
+  int bodyLength) {
+    out.putInt(REPLY_HEADER - 4 + bodyLength).put((byte) category)
+      .putShort((short) remaining).putInt(item);
+  }
+
+  // The id of the dictionary that replies from deflated are compressed
+  // with, 0 if they are not compressed.
+  static int dictionary(DeflatedCatalog deflated) {
+    return deflated == null ? 0 : deflated.id;
+  }
+
+  // Writes a dictionary frame announcing how the replies that follow are
+  // compressed.
+  static void writeDictionary(OutputStream out, ByteBuffer header, DeflatedCatalog deflated)
+  throws IOException {
+    byte[] dictionary = deflated == null ? new byte[0] : deflated.dictionary;
+    header.clear();
+    putReplyHeader(header, DICTIONARY, 0, dictionary(deflated), dictionary.length);
+    out.write(header.array(), 0, REPLY_HEADER);
+    out.write(dictionary);
+  }
+
+  // Takes the next item from the client's cycle and writes its reply frame
+  // to out, compressed if deflated is not null. Returns the item, or -1 if
+  // it failed.
+  static int writeReply(OutputStream out, ByteBuffer header, ClientStore clients, int uuid,
+  Catalog catalog, DeflatedCatalog deflated, int category, int remaining) throws IOException {
+    int item;
+    try {
+      item = Worker.nextLabel(clients, uuid, catalog, category);
+    } catch(Exception e) {
+      item = -1;
+    }
+    header.clear();
+    if(item < 0) {
+      byte[] failed = catalog.failed(category);
+      putReplyHeader(header, category, remaining, -1, failed.length);
+      out.write(header.array(), 0, REPLY_HEADER);
+      out.write(failed);
+      return -1;
+    }
+    if(deflated != null) {
+      putReplyHeader(header, category, remaining, item, deflated.length(category, item));
+      out.write(header.array(), 0, REPLY_HEADER);
+      deflated.write(category, item, out);
+      return item;
+    }
+    putReplyHeader(header, category, remaining, item,
+      catalog.prefix.length + catalog.length(category, item));
+    out.write(header.array(), 0, REPLY_HEADER);
+    catalog.write(category, item, out);
+    return item;
+  }
+
+  // Writes the reply to a request over its client's rate limit: a failed
+  // item with the LIMITED lines as its body.
+  static void writeLimited(OutputStream out, ByteBuffer header, int category)
+  throws IOException {
+    header.clear();
+    putReplyHeader(header, category, 0, -1, Admission.LIMITED.length);
+    out.write(header.array(), 0, REPLY_HEADER);
+    out.write(Admission.LIMITED);
+  }
+
+  // Writes an admin reply frame: the mode, or the error if state is -1.
+  static void writeAdminReply(OutputStream out, long state, Catalog catalog, String error)
+  throws IOException {
+    byte[] name = Catalog.encode(state < 0 ? error
+      : catalog.name(catalog.category(ServerMode.category(state))));
+    ByteBuffer frame = ByteBuffer.allocate(9 + name.length);
+    frame.putInt(5 + name.length)
+      .put((byte) (state < 0 ? FAILED : catalog.category(ServerMode.category(state))))
+      .putInt(state < 0 ? 0 : ServerMode.version(state)).put(name);
+    out.write(frame.array());
+  }
+}
+
+// ModeWorker task runs when JokeClientAdmin or a peer server connects to the
+// admin port. It reads commands, one per line, and answers each one until
+// the client closes the connection, sends QUIT or stays idle for longer
+// than the read timeout. A connection that sends nothing, or an empty
+// line, changes nothing. Commands (any case):
+//  - "TOGGLE": toggle the mode to the next catalog category, from Joke to
+//    Proverb and on around
+//  - "SET name" (or a category number): set the mode
+//  - "SYNC category version": a peer's mode, kept if its version is newer
+//  - "MODE": only report the mode
+//  - "WORKERS n": resize the worker pool of the blocking front end
+//  - "LIMIT CONNECTIONS n", "LIMIT ADDRESS rate [burst]", "LIMIT CLIENT rate
+//    [burst]": change a limit of Admission, 0 to remove it
+//  - "CLIENTS MAX n", "CLIENTS TTL seconds": change the bounds of the heap
+//    client store, 0 for none
+//  - "RELOAD": load the catalog file again
+//  - "SNAPSHOT": write the mapped client store to its file now
+//  - "STATS": the metrics, as on the metrics port
+//  - "SHUTDOWN [seconds]": drain the server and exit (see Shutdown),
+//    giving connections the seconds, or joke.shutdown.timeout, to finish;
+//    only from the server's own host, even with joke.admin.address
+//  - "HELP": the list of commands
+// Mode commands are answered with the resulting mode, "MODE category
+// version NAME", the others with "OK" and what is now in effect, STATS with
+// "STATS n" and n lines of metrics, and a command that failed with "ERROR"
+// and the reason. Toggles and sets are sent on to the server's peers (see
+// ModePeers); without peers, ModeWorker only changes mode of the server
+// that JokeClientAdmin is communicating with. Every change is logged.
+//
+// ModeWorkers run on the admin port's own executor, so a flood of joke
+// traffic does not hold up admin commands and admin work does not take
+// threads from joke requests.
+class ModeWorker implements Runnable {
+  Socket socket;
+  CatalogWatcher catalogs;
+  ModePeers peers;
+  ClientStore clients;
+  ModeWorker (Socket s, CatalogWatcher c, ModePeers p, ClientStore cs) {
+    socket = s;
+    catalogs = c;
+    peers = p;
+    clients = cs;
+  }
+
+  // Milliseconds to wait for the next command line
+  static final int READ_TIMEOUT = 5000;
+
+  static final String HELP = "OK commands: TOGGLE, SET mode, MODE, WORKERS n,"
+    + " LIMIT CONNECTIONS n, LIMIT ADDRESS|CLIENT rate [burst], CLIENTS MAX n,"
+    + " CLIENTS TTL seconds, RELOAD, SNAPSHOT, STATS, SHUTDOWN [seconds], QUIT";
+
+  long state;        // mode a mode command left, -1 for other commands
+  String error;      // or the reason the command failed
+  boolean exit;      // SHUTDOWN was answered, drain once the reply is sent
+
+  public void run() {
+    // Read commands and carry them out.
+    try {
+      socket.setSoTimeout(READ_TIMEOUT);
+      InputStream input = new BufferedInputStream(socket.getInputStream());
+      PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()));
+      // JokeClientAdmin may send a mode command as a binary frame instead
+      input.mark(1);
+      if(input.read() == BinaryProtocol.MAGIC) {
+        execute(binaryCommand(input));
+        BinaryProtocol.writeAdminReply(out, error != null ? -1 : state, catalogs.get(), error);
+      }
+      else {
+        input.reset();
+        BufferedReader in = new BufferedReader(new InputStreamReader(input));
+        String command;
+        try {
+          while((command = in.readLine()) != null) {
+            String reply = execute(command.trim());
+            if(reply == null) {
+              break;
+            }
+            out.println(reply);
+            out.flush();
+            if(exit) {
+              JokeServer.shutdown.shutdownAndExit();
+              break;
+            }
+          }
+        } catch(SocketTimeoutException ste) {
+          // Admin was idle too long, close the connection
+        }
+      }
+      out.flush();
+
+      // Closes this socket connection.
+      socket.close();
+    } catch(IOException ioe) { JokeServer.log.info(ioe.toString()); }
+  }
+
+  // Carries out one command and returns its reply, or null for QUIT. Mode
+  // commands leave the new mode in state, and a failed command leaves the
+  // reason in error.
+  String execute(String command) {
+    long start = System.nanoTime();
+    state = -1;
+    error = null;
+    String[] words = command.split("\\s+");
+    String name = words[0].toUpperCase();
+    String reply;
+    try {
+      reply = name.equals("QUIT") ? null : command(name, words, catalogs.get());
+    } catch(RuntimeException re) {
+      error = "bad command: " + re;
+      reply = null;
+    }
+    if(error != null) {
+      reply = "ERROR " + error;
+    }
+    JokeServer.metrics.admin(name, System.nanoTime() - start);
+    return reply;
+  }
+
+  String command(String name, String[] words, Catalog catalog) {
+    if(name.isEmpty()) {
+      error = "no command, HELP lists them";
+      return null;
+    }
+    if(name.equals("TOGGLE")) {
+      state = JokeServer.mode.toggle(catalog);
+      JokeServer.log.info("Mode toggled to " + catalog.name(ServerMode.category(state)) + ".");
+      peers.publish(state);
+      return ModePeers.describe(state, catalog);
+    }
+    if(name.equals("SET") && words.length > 1) {
+      String mode = words[1];
+      int category = find(catalog, mode);
+      if(category < 0) {
+        error = "unknown mode " + mode;
+        return null;
+      }
+      state = JokeServer.mode.set(category);
+      JokeServer.log.info("Mode set to " + catalog.name(category) + ", version "
+        + ServerMode.version(state) + ".");
+      peers.publish(state);
+      return ModePeers.describe(state, catalog);
+    }
+    if(name.equals("SYNC") && words.length == 3) {
+      long remote = ServerMode.pack(Integer.parseInt(words[2]), Integer.parseInt(words[1]));
+      if(JokeServer.mode.merge(remote)) {
+        JokeServer.log.info("Mode synced to " + catalog.name(catalog.category(ServerMode.category(remote)))
+          + ", version " + ServerMode.version(remote) + ".");
+      }
+      state = JokeServer.mode.state();
+      return ModePeers.describe(state, catalog);
+    }
+    if(name.equals("MODE")) {
+      state = JokeServer.mode.state();
+      return ModePeers.describe(state, catalog);
+    }
+    if(name.equals("WORKERS") && words.length == 2) {
+      int threads = Integer.parseInt(words[1]);
+      ServerExecutor workers = JokeServer.metrics.workers;
+      if(threads < 1) {
+        error = "workers must be at least 1";
+      }
+      else if(workers == null || !workers.resize(threads)) {
+        error = "the joke port has no worker pool to resize";
+      }
+      return changed("workers " + threads);
+    }
+    if(name.equals("LIMIT") && words.length >= 3) {
+      String limit = words[1].toUpperCase();
+      Admission admission = JokeServer.admission;
+      if(limit.equals("CONNECTIONS") && words.length == 3) {
+        admission.maxConnections = Math.max(0, Integer.parseInt(words[2]));
+      }
+      else if(limit.equals("ADDRESS") || limit.equals("CLIENT")) {
+        double rate = Double.parseDouble(words[2]);
+        int burst = words.length > 3 ? Integer.parseInt(words[3]) : Admission.burst(rate);
+        if(limit.equals("ADDRESS")) {
+          admission.limitAddresses(rate, burst);
+        }
+        else {
+          admission.limitClients(rate, burst);
+        }
+      }
+      else {
+        error = "unknown limit " + words[1];
+        return null;
+      }
+      return changed("limits " + admission.describe());
+    }
+    if(name.equals("CLIENTS") && words.length == 3) {
+      ClientStore local = clients instanceof PartitionedClientStore
+        ? ((PartitionedClientStore) clients).local : clients;
+      if(!(local instanceof ClientRegistry)) {
+        error = "only the heap client store has bounds to change";
+        return null;
+      }
+      ClientRegistry registry = (ClientRegistry) local;
+      String bound = words[1].toUpperCase();
+      if(bound.equals("MAX")) {
+        registry.limit(Math.max(0, Integer.parseInt(words[2])));
+      }
+      else if(bound.equals("TTL")) {
+        registry.expireAfter(Math.max(0, Integer.parseInt(words[2])));
+      }
+      else {
+        error = "unknown client bound " + words[1];
+        return null;
+      }
+      return changed("clients max " + registry.maxSize + ", ttl " + registry.ttl + " s, "
+        + registry.size() + " held");
+    }
+    if(name.equals("RELOAD")) {
+      if(catalogs.file == null) {
+        error = "the built-in catalog has no file to reload";
+      }
+      else if(!catalogs.reload()) {
+        error = "reload failed, still serving the old catalog";
+      }
+      return "OK " + catalogs.describe();
+    }
+    if(name.equals("SNAPSHOT")) {
+      ClientStore local = clients instanceof PartitionedClientStore
+        ? ((PartitionedClientStore) clients).local : clients;
+      if(!(local instanceof MappedClientStore)) {
+        error = "the client store is not kept in a file, see joke.store=mapped";
+        return null;
+      }
+      ((MappedClientStore) local).sync();
+      return changed("snapshot of " + local.size() + " clients written");
+    }
+    if(name.equals("STATS")) {
+      String stats = JokeServer.metrics.format(clients, catalog);
+      int lines = 0;
+      for(int i = 0; i < stats.length(); i++) {
+        lines += stats.charAt(i) == '\n' ? 1 : 0;
+      }
+      // format() ends with a newline, which println adds back
+      return "STATS " + lines + "\n" + stats.substring(0, stats.length() - 1);
+    }
+    if(name.equals("SHUTDOWN")) {
+      // Stopping is for whoever runs the server, not for every admin
+      if(!socket.getInetAddress().isLoopbackAddress()) {
+        error = "SHUTDOWN is only taken from the server's own host";
+        return null;
+      }
+      if(words.length > 1) {
+        JokeServer.shutdown.timeout = Math.max(0, Long.parseLong(words[1])) * 1000;
+      }
+      // Logged by Shutdown as it starts
+      exit = true;
+      return "OK shutting down, connections have "
+        + JokeServer.shutdown.timeout / 1000 + " s to finish";
+    }
+    if(name.equals("HELP")) {
+      return HELP;
+    }
+    error = "unknown command " + name + ", HELP lists them";
+    return null;
+  }
+
+  // The reply to a command that changed a setting, which is also logged.
+  String changed(String setting) {
+    if(error != null) {
+      return null;
+    }
+    JokeServer.log.info("Admin changed " + setting + ".");
+    return "OK " + setting;
+  }
+
+  // Reads a binary admin frame as the text command it stands for.
+  static String binaryCommand(InputStream in) throws IOException {
+    ByteBuffer frame = ByteBuffer.allocate(BinaryProtocol.MAX_FRAME);
+    if(!BinaryProtocol.readFrame(in, frame) || frame.limit() < 1) {
+      return "BINARY";
+    }
+    int op = frame.get(0);
+    String argument = new String(frame.array(), 1, frame.limit() - 1, Catalog.UTF8);
+    return op == BinaryProtocol.TOGGLE ? "TOGGLE"
+      : op == BinaryProtocol.SET ? "SET " + argument
+      : op == BinaryProtocol.MODE ? "MODE" : "BINARY " + op;
+  }
+
+  // Category index for a name (any case) or number, -1 if there is none.
+  static int find(Catalog catalog, String mode) {
+    for(int i = 0; i < catalog.size(); i++) {
+      if(catalog.name(i).equalsIgnoreCase(mode)) {
+        return i;
+      }
+    }
+    if(mode.matches("\\d+") && Integer.parseInt(mode) < catalog.size()) {
+      return Integer.parseInt(mode);
+    }
+    return -1;
+  }
+}
+
+// ServerMode is the catalog category the server is serving. Every Worker
+// reads it on each request, and admins on any thread may change it, so the
+// category and a version number are kept together in one AtomicLong: reads
+// are a volatile read, and every change is a compare-and-set on the pair,
+// so two admins toggling at once both take effect and neither is lost.
+//
+// The version orders changes across servers. Each toggle or set makes the
+// next version, and a state from a peer is kept only if it is newer, so
+// every server that has seen the same states ends up in the same mode no
+// matter what order they arrived in. Versions that tie are ordered by
+// category, which is enough for two concurrent sets to settle on one.
+class ServerMode {
+  final AtomicLong state = new AtomicLong();   // version << 32 | category
+
+  // Category to serve; pass to Catalog.category before indexing.
+  int get() {
+    return category(state.get());
+  }
+
+  long state() {
+    return state.get();
+  }
+
+  // Moves to the category after the current one in catalog.
+  long toggle(Catalog catalog) {
+    while(true) {
+      long current = state.get();
+      long next = pack(version(current) + 1, (catalog.category(category(current)) + 1) % catalog.size());
+      if(state.compareAndSet(current, next)) {
+        return next;
+      }
+    }
+  }
+
+  // Sets the category, whatever the current one is.
+  long set(int category) {
+    while(true) {
+      long current = state.get();
+      long next = pack(version(current) + 1, category);
+      if(state.compareAndSet(current, next)) {
+        return next;
+      }
+    }
+  }
+
+  // Takes a state from another server if it is newer. Returns true if the
+  // mode changed.
+  boolean merge(long remote) {
+    while(true) {
+      long current = state.get();
+      if(remote <= current) {
+        return false;
+      }
+      if(state.compareAndSet(current, remote)) {
+        return true;
+      }
+    }
+  }
+
+  static long pack(int version, int category) {
+    return (long) version << 32 | (category & 0xFFFFFFFFL);
+  }
+
+  static int version(long state) {
+    return (int) (state >>> 32);
+  }
+
+  static int category(long state) {
+    return (int) state;
+  }
+}
+
+// ModePeers sends mode changes to the other JokeServers of a cluster, set
+// with -Djoke.peers=host:adminPort,host:adminPort,... Every toggle or set is
+// sent at once to each peer's admin port as a SYNC command, and the whole
+// state is sent again every joke.peers.syncInterval milliseconds (default
+// 5000) so that a peer that was down or missed a change catches up. Peers
+// answer with their own state, which is merged too, so a server that fell
+// behind learns the newest mode from whichever peer it talks to first.
+// Peers should serve the same catalog, since modes are sent as category
+// numbers.
+class ModePeers {
+  // Milliseconds to connect to and hear back from a peer
+  static final int TIMEOUT = 1000;
+
+  final List<InetSocketAddress> peers;
+  final ExecutorService sender;    // sends in order, off the admin threads
+  final CatalogWatcher catalogs;
+
+  ModePeers(List<InetSocketAddress> peers, CatalogWatcher catalogs) {
+    this.peers = peers;
+    this.catalogs = catalogs;
+    sender = peers.isEmpty() ? null : Executors.newSingleThreadExecutor(
+      new ServerExecutor.NamedThreadFactory("joke-mode-sync"));
+  }
+
+  static ModePeers fromProperties(CatalogWatcher catalogs) {
+    List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+    for (String peer : System.getProperty("joke.peers", "").split(",")) {
+      peer = peer.trim();
+      if (!peer.isEmpty()) {
+        int colon = peer.lastIndexOf(':');
+        peers.add(new InetSocketAddress(peer.substring(0, colon),
+          Integer.parseInt(peer.substring(colon + 1))));
+      }
+    }
+    final ModePeers modePeers = new ModePeers(peers, catalogs);
+    if (!peers.isEmpty()) {
+      long interval = Long.getLong("joke.peers.syncInterval", 5000L);
+      Executors.newSingleThreadScheduledExecutor(
+        new ServerExecutor.NamedThreadFactory("joke-mode-antientropy"))
+        .scheduleWithFixedDelay(new Runnable() {
+          public void run() { modePeers.publish(JokeServer.mode.state()); }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+    return modePeers;
+  }
+
+  // Sends state to every peer in the background.
+  void publish(final long state) {
+    if (sender == null) {
+      return;
+    }
+    sender.execute(new Runnable() {
+      public void run() {
+        for (InetSocketAddress peer : peers) {
+          send(peer, state);
+        }
+      }
+    });
+  }
+
+  // Sends one SYNC and merges the peer's answer. An unreachable peer is
+  // skipped; it catches up on a later send.
+  void send(InetSocketAddress peer, long state) {
+    Socket socket = new Socket();
+    try {
+      socket.connect(peer, TIMEOUT);
+      socket.setSoTimeout(TIMEOUT);
+      PrintStream out = new PrintStream(socket.getOutputStream());
+      out.println("SYNC " + ServerMode.category(state) + " " + ServerMode.version(state));
+      out.flush();
+      String reply = new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+      if (reply != null && reply.startsWith("MODE ")) {
+        String[] fields = reply.split(" ");
+        long remote = ServerMode.pack(Integer.parseInt(fields[2]), Integer.parseInt(fields[1]));
+        if (JokeServer.mode.merge(remote)) {
+          Catalog catalog = catalogs.get();
+          JokeServer.log.info("Mode synced to " + catalog.name(catalog.category(ServerMode.category(remote)))
+            + ", version " + ServerMode.version(remote) + ".");
+        }
+      }
+    } catch (IOException ioe) {
+      // Peer is down or slow, the next send retries
+    } catch (RuntimeException re) {
+      JokeServer.log.info("Bad reply from peer " + peer + ": " + re);
+    } finally {
+      try { socket.close(); } catch (IOException ioe) { }
+    }
+  }
+
+  // The reply line for a mode state: "MODE category version NAME".
+  static String describe(long state, Catalog catalog) {
+    int category = ServerMode.category(state);
+    return "MODE " + category + " " + ServerMode.version(state) + " "
+      + catalog.name(catalog.category(category));
+  }
+}
+
+// ModeServer runs asynchronously, waits for JokeClientAdmin to connect to
+// the server. Each connection gets a ModeWorker task, which carries out the
+// admin's commands: toggling the server's mode from Joke to Proverb, or from
+// Proverb to Joke, and the rest (see ModeWorker). Peer servers connect here
+// too to keep modes in step. Commands are not authenticated, so the port
+// listens on the loopback address only, unless joke.admin.address opens it
+// to other hosts.
+class ModeServer implements Runnable {
+  public static boolean adminControlSwitch = true;
+  int port;
+  CatalogWatcher catalogs;
+  ModePeers peers;
+  ClientStore clients;
+  ServerExecutor executor; // Small executor that runs ModeWorker tasks
+  volatile ServerSocket serversocket;
+
+  ModeServer(int p, CatalogWatcher c, ModePeers mp, ClientStore cs) {
+    port = p;
+    catalogs = c;
+    peers = mp;
+    clients = cs;
+    // Admin connections are rare, so a couple of threads with a short
+    // queue is enough and keeps admin work separate from joke traffic.
+    // Beyond that connections are told the server is busy, so that idle
+    // ones cannot hold up the accept loop.
+    executor = ServerExecutor.create("joke-admin", "pool", 2, 16, "abort", 16);
+  }
+  public void run() {
+    // Number of requests for OS to queue
+    int queueLength = 6;
+    // Set port number for socket connection to Admin client
+    Socket socket;
+
+    // Create server socket (using port, queue length variables) to handle
+    // requests from admin client.
+    try {
+      serversocket = new ServerSocket(port, queueLength, bindAddress("joke.admin.address"));
+      while(adminControlSwitch) {
+        // Socket accepts admin client connection and runs ModeWorker task
+        // to carry out its commands, such as toggling modes between Joke and
+        // Proverb for all clients connected to the server
+        socket = serversocket.accept();
+        if(!executor.submit(new ModeWorker(socket, catalogs, peers, clients), socket)) {
+          JokeServer.metrics.adminRejected.increment();
+        }
+      }
+    } catch (IOException ioe) {
+      if(adminControlSwitch) {
+        JokeServer.log.info(ioe.toString());
+      }
+    }
+  }
+
+  // Address an unauthenticated port listens on, from the given property:
+  // loopback unless it names another.
+  static InetAddress bindAddress(String property) throws UnknownHostException {
+    String address = System.getProperty(property);
+    return address == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(address);
+  }
+
+  // Stops accepting admin connections; commands already being answered are
+  // finished by their ModeWorkers.
+  void stop() {
+    adminControlSwitch = false;
+    Shutdown.close(serversocket);
+  }
+}
+
+// ServerExecutor runs the tasks for accepted connections. It is chosen at
+// startup with the joke.executor system property:
+//  - "pool" (default): a bounded pool of platform threads with a bounded
+//    queue. When the queue is full the rejection policy applies: "abort"
+//    (default) tells the client the server is busy and closes the
+//    connection; "callerruns" serves it on the accept thread, which stops
+//    accepting until it is done and leaves new connections waiting in the
+//    OS backlog. A connection served there is never kept alive (see
+//    Worker), and nothing it throws reaches the accept loop.
+//  - "virtual": one virtual thread per connection (Java 21 or later), with a
+//    limit on connections in flight so the accept loop waits instead of
+//    creating threads without bound. Falls back to "pool" on older JVMs.
+class ServerExecutor {
+  final ExecutorService executor;
+  final Semaphore inFlight;   // Bounds virtual-thread connections, null for pool
+  final boolean abort;        // true when full-queue rejections close the socket
+  final AtomicInteger keepAlives = new AtomicInteger();  // pool threads held by them
+  volatile int maxKeepAlive;  // joke.keepalive.max, 0 for three quarters of the pool
+
+  ServerExecutor(ExecutorService executor, Semaphore inFlight, boolean abort) {
+    this.executor = executor;
+    this.inFlight = inFlight;
+    this.abort = abort;
+  }
+
+  // Builds the executor for the accept loop of JokeServer from system
+  // properties, with defaults sized for the joke port.
+  static ServerExecutor fromProperties(String name) {
+    int cores = Runtime.getRuntime().availableProcessors();
+    ServerExecutor executor = create(name,
+      System.getProperty("joke.executor", "pool"),
+      Integer.getInteger("joke.workers", Math.max(8, cores * 4)),
+      Integer.getInteger("joke.queue", 256),
+      System.getProperty("joke.rejection", "abort"),
+      Integer.getInteger("joke.maxConnections", 10000));
+    executor.maxKeepAlive = Integer.getInteger("joke.keepalive.max", 0);
+    return executor;
+  }
+
+  static ServerExecutor create(String name, String kind, int threads, int queue,
+  String rejection, int maxConnections) {
+    if (kind.equals("virtual")) {
+      ExecutorService virtual = newVirtualThreadExecutor();
+      if (virtual != null) {
+        return new ServerExecutor(virtual, new Semaphore(maxConnections), false);
+      }
+      System.out.println("Virtual threads need Java 21, using a thread pool for " + name + ".");
+    }
+    // Rejections always reach submit(), which runs callerruns tasks itself
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+      60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queue),
+      new NamedThreadFactory(name), new ThreadPoolExecutor.AbortPolicy());
+    return new ServerExecutor(pool, null, !rejection.equals("callerruns"));
+  }
+
+  // Looks up Executors.newVirtualThreadPerTaskExecutor reflectively so that
+  // the server still compiles and runs on Java 8.
+  static ExecutorService newVirtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class
+        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  // Submits the task that serves socket. Returns false if the connection was
+  // rejected, in which case the client has been told and the socket closed.
+  boolean submit(final Runnable task, Socket socket) {
+    if (inFlight != null) {
+      // Backpressure for virtual threads: wait for a connection to finish
+      inFlight.acquireUninterruptibly();
+      try {
+        executor.execute(new Runnable() {
+          public void run() {
+            try {
+              task.run();
+            } finally {
+              inFlight.release();
+            }
+          }
+        });
+      } catch (RejectedExecutionException ree) {
+        inFlight.release();
+        return reject(socket);
+      }
+      return true;
+    }
+    try {
+      executor.execute(task);
+      return true;
+    } catch (RejectedExecutionException ree) {
+      if (abort || executor.isShutdown()) {
+        return reject(socket);
+      }
+    }
+    runHere(task);
+    return true;
+  }
+
+  // Runs a callerruns task on the accept thread. A failure is logged and
+  // leaves the accept loop running.
+  static void runHere(Runnable task) {
+    try {
+      task.run();
+    } catch (RuntimeException re) {
+      JokeServer.log.error("Server error.", re);
+    }
+  }
+
+  // Claims the current thread for a keep-alive connection, until
+  // keptAlive(). Refused on the accept thread (callerruns), while
+  // connections wait in the queue, and once keep-alive connections hold
+  // maxKeepAlive threads, so that idle clients cannot take the whole pool;
+  // the Worker then closes the connection after the requests already sent.
+  // Virtual threads are not pooled and are always allowed.
+  boolean keepAlive() {
+    if (inFlight != null) {
+      return true;
+    }
+    ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+    if (!(Thread.currentThread() instanceof PoolThread) || !pool.getQueue().isEmpty()) {
+      return false;
+    }
+    int max = maxKeepAlive > 0 ? maxKeepAlive : Math.max(1, pool.getMaximumPoolSize() * 3 / 4);
+    if (keepAlives.incrementAndGet() > max) {
+      keepAlives.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  // Gives back a thread claimed by keepAlive().
+  void keptAlive() {
+    if (inFlight == null) {
+      keepAlives.decrementAndGet();
+    }
+  }
+
+  // Changes the number of pool threads. Idle threads over the new number
+  // stop at once, busy ones when their connection is done. Returns false
+  // for virtual threads, which are not pooled.
+  synchronized boolean resize(int threads) {
+    if (!(executor instanceof ThreadPoolExecutor)) {
+      return false;
+    }
+    ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+    // The core size may never be above the maximum
+    if (threads > pool.getMaximumPoolSize()) {
+      pool.setMaximumPoolSize(threads);
+      pool.setCorePoolSize(threads);
+    } else {
+      pool.setCorePoolSize(threads);
+      pool.setMaximumPoolSize(threads);
+    }
+    return true;
+  }
+
+  // Sends a two line busy reply, in the same shape as a joke, and closes.
+  static boolean reject(Socket socket) {
+    try {
+      PrintStream out = new PrintStream(socket.getOutputStream());
+      out.println("BUSY");
+      out.println("Server busy, try again later.");
+      out.flush();
+      socket.close();
+    } catch (IOException ioe) { JokeServer.log.info(ioe.toString()); }
+    return false;
+  }
+
+  // Names executor threads after the server they belong to.
+  static class NamedThreadFactory implements ThreadFactory {
+    final String name;
+    final AtomicInteger count = new AtomicInteger();
+
+    NamedThreadFactory(String name) { this.name = name; }
+
+    public Thread newThread(Runnable r) {
+      Thread thread = new PoolThread(r, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+  // Thread of an executor, told apart from the accept thread.
+  static class PoolThread extends Thread {
+    PoolThread(Runnable r, String name) { super(r, name); }
+  }
+}
+
+// TokenBuckets limits the rate of requests for each key, a source address
+// or a client uuid, with the generic cell rate algorithm: a token bucket
+// that keeps, instead of a token count and a refill time, only the time at
+// which the bucket will be full again. A request is allowed if that time is
+// at most burst intervals ahead of now, and moves it one interval on. So a
+// bucket is one long, and a decision is a hash, a read and a compare-and-
+// set. Keys are not stored: they are hashed to a fixed table, and keys that
+// share a slot share a bucket, which only makes the limit stricter for them
+// and only while both are busy; an idle bucket is full whoever owns it.
+class TokenBuckets {
+  final AtomicLongArray slots;
+  final int mask;
+  final long start = System.nanoTime();   // slots hold nanoseconds since start
+  volatile long interval;                 // nanoseconds per request at the rate
+  volatile long tolerance;                // interval times burst
+
+  // Table of size slots, rounded up to a power of two.
+  TokenBuckets(int size, double rate, int burst) {
+    int slots = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+    this.slots = new AtomicLongArray(slots);
+    mask = slots - 1;
+    configure(rate, burst);
+  }
+
+  // Changes the rate (requests per second) and burst of every bucket.
+  void configure(double rate, int burst) {
+    long interval = (long) (1e9 / rate);
+    tolerance = interval * Math.max(1, burst);
+    this.interval = interval;
+  }
+
+  // The rate and burst, e.g. "10.0/s burst 20".
+  String describe() {
+    long interval = this.interval;
+    return String.format("%.1f/s burst %d", 1e9 / interval, tolerance / interval);
+  }
+
+  // Takes a token from key's bucket. Returns false if it is empty.
+  boolean tryAcquire(int key) {
+    int slot = ClientRegistry.hash(key) & mask;
+    long interval = this.interval;
+    long tolerance = this.tolerance;
+    long now = System.nanoTime() - start;
+    while (true) {
+      long full = slots.get(slot);
+      long next = Math.max(full, now) + interval;
+      if (next - now > tolerance) {
+        return false;
+      }
+      if (slots.compareAndSet(slot, full, next)) {
+        return true;
+      }
+    }
+  }
+}
+
+// Admission decides whether the server takes a connection, on the accept
+// thread before the connection gets a Worker or an event loop, and whether
+// it serves a request, once its uuid has been read:
+//  - joke.limit.connections: connections in flight, accepted but not yet
+//    closed, queued ones included (default 0, no limit)
+//  - joke.limit.address: new connections per second from one source
+//    address (default 0, no limit), with bursts of joke.limit.address.burst
+//    (default one second's worth)
+//  - joke.limit.client: requests per second for one uuid (default 0, no
+//    limit), with bursts of joke.limit.client.burst (default one second's
+//    worth); a BATCH request counts once
+//  - joke.limit.slots: buckets in each rate table (default 65536)
+// A connection over a limit is answered "LIMITED" in the shape of a joke
+// and closed by the accept thread, and a request over the uuid limit gets
+// the same reply on its connection, or a failed item on a binary one. Both
+// are counted, by the limit that refused them, in the metrics. Every limit
+// can be changed while serving (see ModeWorker's LIMIT command).
+class Admission {
+  static final byte[] LIMITED = Catalog.encode("LIMITED\nToo many requests, try again later.\n");
+
+  volatile int maxConnections;          // 0 for no limit
+  final AtomicInteger connections = new AtomicInteger();
+  final int slots;                      // buckets per rate table
+  volatile TokenBuckets addresses;      // null for no limit
+  volatile TokenBuckets clients;        // null for no limit
+  final LongAdder limitedConnections = new LongAdder();
+  final LongAdder limitedAddresses = new LongAdder();
+  final LongAdder limitedClients = new LongAdder();
+
+  Admission(int maxConnections, int slots, double addressRate, int addressBurst,
+  double clientRate, int clientBurst) {
+    this.maxConnections = maxConnections;
+    this.slots = slots;
+    addresses = change(null, addressRate, addressBurst);
+    clients = change(null, clientRate, clientBurst);
+  }
+
+  static Admission fromProperties() {
+    double address = Double.parseDouble(System.getProperty("joke.limit.address", "0"));
+    double client = Double.parseDouble(System.getProperty("joke.limit.client", "0"));
+    return new Admission(Integer.getInteger("joke.limit.connections", 0),
+      Integer.getInteger("joke.limit.slots", 65536),
+      address, Integer.getInteger("joke.limit.address.burst", burst(address)),
+      client, Integer.getInteger("joke.limit.client.burst", burst(client)));
+  }
+
+  // The default burst: one second's worth of requests.
+  static int burst(double rate) {
+    return (int) Math.max(1, Math.ceil(rate));
+  }
+
+  // The buckets for a new rate: none for a rate of 0, otherwise buckets
+  // reconfigured in place, so clients keep what they have used.
+  TokenBuckets change(TokenBuckets buckets, double rate, int burst) {
+    if (rate <= 0) {
+      return null;
+    }
+    if (buckets == null) {
+      return new TokenBuckets(slots, rate, burst);
+    }
+    buckets.configure(rate, burst);
+    return buckets;
+  }
+
+  synchronized void limitAddresses(double rate, int burst) {
+    addresses = change(addresses, rate, burst);
+  }
+
+  synchronized void limitClients(double rate, int burst) {
+    clients = change(clients, rate, burst);
+  }
+
+  // The limits, e.g. "connections 100, address 10.0/s burst 10, client off".
+  String describe() {
+    TokenBuckets addresses = this.addresses;
+    TokenBuckets clients = this.clients;
+    return "connections " + (maxConnections > 0 ? "" + maxConnections : "off")
+      + ", address " + (addresses != null ? addresses.describe() : "off")
+      + ", client " + (clients != null ? clients.describe() : "off");
+  }
+
+  // Takes a connection from address if it is within the limits. Every
+  // connection taken must be given back with finished() once it is closed.
+  boolean admit(InetAddress address) {
+    int max = maxConnections;
+    if (connections.incrementAndGet() > max && max > 0) {
+      connections.decrementAndGet();
+      limitedConnections.increment();
+      return false;
+    }
+    TokenBuckets addresses = this.addresses;
+    if (addresses != null && !addresses.tryAcquire(address.hashCode())) {
+      connections.decrementAndGet();
+      limitedAddresses.increment();
+      return false;
+    }
+    return true;
+  }
+
+  void finished() {
+    connections.decrementAndGet();
+  }
+
+  // Runs task, then gives its connection back.
+  Runnable finishing(final Runnable task) {
+    return new Runnable() {
+      public void run() {
+        try {
+          task.run();
+        } finally {
+          finished();
+        }
+      }
+    };
+  }
+
+  // True if a request for uuid is within its rate.
+  boolean allow(int uuid) {
+    TokenBuckets clients = this.clients;
+    if (clients != null && !clients.tryAcquire(uuid)) {
+      limitedClients.increment();
+      return false;
+    }
+    return true;
+  }
+
+  long limited() {
+    return limitedConnections.sum() + limitedAddresses.sum() + limitedClients.sum();
+  }
+
+  // Answers a connection that was not admitted and closes it. The reply is
+  // far smaller than a socket buffer, so the accept thread does not wait.
+  // The request already received is read and dropped first: closing a
+  // socket with unread input resets the connection, and the client would
+  // lose the reply.
+  static void refuse(Socket socket) {
+    try {
+      socket.getOutputStream().write(LIMITED);
+      socket.shutdownOutput();
+      InputStream in = socket.getInputStream();
+      in.skip(in.available());
+      socket.close();
+    } catch (IOException ioe) { JokeServer.log.info(ioe.toString()); }
+  }
+
+  static void refuse(SocketChannel channel) {
+    try {
+      channel.write(ByteBuffer.wrap(LIMITED));
+      channel.socket().shutdownOutput();
+      channel.configureBlocking(false);
+      ByteBuffer discard = ByteBuffer.allocate(1024);
+      while (channel.read(discard) > 0) {
+        discard.clear();
+      }
+      channel.close();
+    } catch (IOException ioe) { JokeServer.log.info(ioe.toString()); }
+  }
+}
+
+// NioJokeServer is the non-blocking front end for the joke port, chosen with
+// -Djoke.frontend=nio. One thread accepts connections and hands each one to
+// a small number of event loops (one per core by default). Each event loop
+// owns a Selector and reusable direct buffers, parses the uuid and name lines
+// incrementally as bytes arrive, and writes the label and text lines back
+// straight from the catalog without creating a reader or writer per
+// connection. The wire format is the same as for Worker, so JokeClient works
+// with either front end.
+class NioJokeServer {
+  final InetAddress address;
+  final int port;
+  final int queueLength;
+  final EventLoop[] loops;
+  volatile ServerSocketChannel server;
+
+  NioJokeServer(InetAddress address, int port, int queueLength, int loopCount,
+  ClientStore clients, CatalogWatcher catalogs) throws IOException {
+    this.address = address;
+    this.port = port;
+    this.queueLength = queueLength;
+    loops = new EventLoop[loopCount];
+    for (int i = 0; i < loopCount; i++) {
+      loops[i] = new EventLoop(clients, catalogs);
+    }
+  }
+
+  // Starts the event loops and accepts connections until the server socket
+  // is closed, spreading connections over the loops round robin.
+  void run() throws IOException {
+    for (int i = 0; i < loops.length; i++) {
+      Thread thread = new Thread(loops[i], "joke-nio-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.socket().bind(new InetSocketAddress(address, port), queueLength);
+    this.server = server;
+    int next = 0;
+    while (server.isOpen()) {
+      SocketChannel channel;
+      try {
+        channel = server.accept();
+      } catch (ClosedChannelException cce) {
+        break;    // closed by stop()
+      }
+      JokeServer.metrics.accepted.increment();
+      if (!JokeServer.admission.admit(channel.socket().getInetAddress())) {
+        Admission.refuse(channel);
+        continue;
+      }
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      loops[next].register(channel);
+      next = (next + 1) % loops.length;
+    }
+  }
+
+  // Stops accepting connections. The event loops go on serving the ones
+  // they have, closing keep-alive connections as they become idle.
+  void stop() {
+    try {
+      ServerSocketChannel server = this.server;
+      if (server != null) {
+        server.close();
+      }
+    } catch (IOException ioe) { JokeServer.log.info(ioe.toString()); }
+    wakeup();
+  }
+
+  // Has every event loop look at its connections again.
+  void wakeup() {
+    for (EventLoop loop : loops) {
+      loop.selector.wakeup();
+    }
+  }
+
+  // Per-connection parse state. The first line of a request (uuid, BATCH or
+  // KEEPALIVE) is kept in a small byte array; the name line is skipped
+  // because the server does not use it.
+  static final class Connection {
+    final byte[] line = new byte[32];
+    int length;            // bytes of the current first line
+    boolean nameLine;      // true while skipping the name line
+    int uuid;
+    int batch = -1;        // count from a BATCH line, -1 for a single request
+    boolean firstLine = true;  // no complete line read yet
+    boolean keepAlive;     // serve requests until close or idle timeout
+    boolean requested;     // a request has been answered
+    boolean closing;       // client closed its side, close after flushing
+    long lastActive;       // time of the last read, for the idle timeout
+    ByteBuffer pending;    // reply bytes left over after a partial write
+    // Binary protocol: the frame length, uuid and count are kept in line,
+    // and the rest of the frame (the name) is skipped
+    boolean binary;
+    int skip;
+    // Compressed binary replies: bytes of the client's dictionary id still
+    // to read, and the dictionary the client has
+    boolean deflate;
+    int hello;
+    int dictionary;
+
+    // Clears the request fields so the next request can be parsed.
+    void reset() {
+      length = 0;
+      nameLine = false;
+      batch = -1;
+    }
+  }
+
+  static final class EventLoop implements Runnable {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final byte[] KEEPALIVE = Worker.KEEPALIVE.getBytes(UTF8);
+    static final byte[] BATCH = Worker.BATCH.getBytes(UTF8);
+
+    final Selector selector;
+    final ConcurrentLinkedQueue<SocketChannel> registrations =
+      new ConcurrentLinkedQueue<SocketChannel>();
+    final ByteBuffer readBuffer = ByteBuffer.allocateDirect(4096);
+    final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(8192);
+    final ClientStore clients;
+    final CatalogWatcher catalogs;
+    long lastSweep;
+
+    EventLoop(ClientStore clients, CatalogWatcher catalogs) throws IOException {
+      selector = Selector.open();
+      this.clients = clients;
+      this.catalogs = catalogs;
+    }
+
+    // Called from the accept thread; the channel is registered by the loop
+    // thread itself because Selector registration blocks during select().
+    void register(SocketChannel channel) {
+      registrations.add(channel);
+      selector.wakeup();
+    }
+
+    public void run() {
+      while (selector.isOpen()) {
+        try {
+          selector.select(1000);
+          long now = System.currentTimeMillis();
+          SocketChannel channel;
+          while ((channel = registrations.poll()) != null) {
+            Connection conn = new Connection();
+            conn.lastActive = now;
+            channel.register(selector, SelectionKey.OP_READ, conn);
+            JokeServer.metrics.active.increment();
+          }
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            try {
+              if (key.isReadable()) {
+                read(key, now);
+              } else if (key.isWritable()) {
+                flush(key);
+              }
+            } catch (IOException ioe) {
+              close(key);
+            }
+          }
+          if (now - lastSweep >= 1000) {
+            closeIdle(now);
+            lastSweep = now;
+          }
+          if (JokeServer.shutdown.draining) {
+            closeDrained();
+          }
+        } catch (IOException ioe) { JokeServer.log.info(ioe.toString()); }
+      }
+    }
+
+    // Reads what the client has sent and answers every complete request in
+    // it. Replies are gathered in the write buffer and written together.
+    void read(SelectionKey key, long now) throws IOException {
+      SocketChannel channel = (SocketChannel) key.channel();
+      Connection conn = (Connection) key.attachment();
+      conn.lastActive = now;
+      readBuffer.clear();
+      int n = channel.read(readBuffer);
+      if (n < 0) {
+        close(key);
+        return;
+      }
+      readBuffer.flip();
+      writeBuffer.clear();
+      int magic = conn.firstLine && conn.length == 0 && readBuffer.hasRemaining()
+        ? readBuffer.get(readBuffer.position()) & 0xFF : -1;
+      if (magic == BinaryProtocol.MAGIC || magic == BinaryProtocol.DEFLATE_MAGIC) {
+        readBuffer.get();
+        conn.binary = true;
+        conn.deflate = magic == BinaryProtocol.DEFLATE_MAGIC;
+        conn.hello = conn.deflate ? 4 : 0;
+        conn.keepAlive = true;
+        conn.firstLine = false;
+      }
+      if (conn.binary) {
+        writeReplies(key, conn, readFrames(key, conn));
+        return;
+      }
+      boolean done = false;
+      while (readBuffer.hasRemaining() && !done) {
+        byte b = readBuffer.get();
+        if (b == '\n') {
+          done = endOfLine(key, conn);
+        } else if (b != '\r') {
+          parse(conn, b);
+        }
+      }
+      writeReplies(key, conn, done);
+    }
+
+    // Answers every complete binary request frame in the read buffer, taking
+    // the header fields straight from its bytes. A frame split over reads is
+    // kept in the connection until the rest arrives. Returns true if a bad
+    // frame means the connection is closed.
+    boolean readFrames(SelectionKey key, Connection conn) throws IOException {
+      int header = 4 + BinaryProtocol.REQUEST_SIZE;
+      while (readBuffer.hasRemaining()) {
+        if (conn.hello > 0) {
+          int n = Math.min(conn.hello, readBuffer.remaining());
+          readBuffer.get(conn.line, 4 - conn.hello, n);
+          conn.hello -= n;
+          if (conn.hello == 0) {
+            conn.dictionary = getInt(conn.line, 0);
+          }
+          continue;
+        }
+        if (conn.length < header) {
+          // The length is checked as soon as it is in, then the uuid and count
+          int end = conn.length < 4 ? 4 : header;
+          int n = Math.min(end - conn.length, readBuffer.remaining());
+          readBuffer.get(conn.line, conn.length, n);
+          conn.length += n;
+          if (conn.length == 4) {
+            int length = getInt(conn.line, 0);
+            if (length < BinaryProtocol.REQUEST_SIZE || length > BinaryProtocol.MAX_FRAME) {
+              JokeServer.log.info("Server read error.");
+              return true;
+            }
+            conn.skip = length - BinaryProtocol.REQUEST_SIZE;
+          }
+          if (conn.length < header) {
+            continue;
+          }
+        }
+        int n = Math.min(conn.skip, readBuffer.remaining());
+        readBuffer.position(readBuffer.position() + n);
+        conn.skip -= n;
+        if (conn.skip > 0) {
+          return false;
+        }
+        replyFrames(key, conn, getInt(conn.line, 4),
+          Worker.batchSize((conn.line[8] & 0xFF) << 8 | conn.line[9] & 0xFF));
+        conn.length = 0;
+        conn.requested = true;
+      }
+      return false;
+    }
+
+    static int getInt(byte[] bytes, int at) {
+      return bytes[at] << 24 | (bytes[at + 1] & 0xFF) << 16 | (bytes[at + 2] & 0xFF) << 8
+        | bytes[at + 3] & 0xFF;
+    }
+
+    // Answers a binary request with count reply frames.
+    void replyFrames(SelectionKey key, Connection conn, int uuid, int count) throws IOException {
+      long start = System.nanoTime();
+      Catalog catalog = catalogs.get();
+      int category = catalog.category(JokeServer.mode.get());
+      if (!JokeServer.admission.allow(uuid)) {
+        if (writeBuffer.remaining() < BinaryProtocol.REPLY_HEADER) {
+          drain(key, conn);
+        }
+        BinaryProtocol.putReplyHeader(writeBuffer, category, 0, -1, Admission.LIMITED.length);
+        put(key, conn, Admission.LIMITED);
+        return;
+      }
+      DeflatedCatalog deflated = conn.deflate ? catalog.deflated : null;
+      if (conn.deflate && BinaryProtocol.dictionary(deflated) != conn.dictionary) {
+        byte[] dictionary = deflated == null ? new byte[0] : deflated.dictionary;
+        if (writeBuffer.remaining() < BinaryProtocol.REPLY_HEADER) {
+          drain(key, conn);
+        }
+        BinaryProtocol.putReplyHeader(writeBuffer, BinaryProtocol.DICTIONARY, 0,
+          BinaryProtocol.dictionary(deflated), dictionary.length);
+        put(key, conn, dictionary);
+        conn.dictionary = BinaryProtocol.dictionary(deflated);
+      }
+      if (conn.dictionary == 0) {
+        deflated = null;
+      }
+      int first = -1;
+      for (int i = 0; i < count; i++) {
+        int item;
+        try {
+          item = Worker.nextLabel(clients, uuid, catalog, category);
+        } catch (Exception e) {
+          item = -1;
+        }
+        if (writeBuffer.remaining() < BinaryProtocol.REPLY_HEADER) {
+          drain(key, conn);
+        }
+        if (item < 0) {
+          byte[] failed = catalog.failed(category);
+          BinaryProtocol.putReplyHeader(writeBuffer, category, count - 1 - i, -1, failed.length);
+          put(key, conn, failed);
+        } else if (deflated != null) {
+          BinaryProtocol.putReplyHeader(writeBuffer, category, count - 1 - i, item,
+            deflated.length(category, item));
+          put(key, conn, deflated.record(category, item));
+        } else {
+          ByteBuffer record = catalog.record(category, item);
+          BinaryProtocol.putReplyHeader(writeBuffer, category, count - 1 - i, item,
+            catalog.prefix.length + record.remaining());
+          put(key, conn, catalog.prefix);
+          put(key, conn, record);
+        }
+        first = i == 0 ? item : first;
+      }
+      long time = System.nanoTime() - start;
+      JokeServer.metrics.request(category, count, time);
+      JokeServer.log.access(uuid, catalog, category, first, count, time);
+    }
+
+    // Handles the end of a line. Returns true when the connection will be
+    // closed once the replies written so far have been sent.
+    boolean endOfLine(SelectionKey key, Connection conn) throws IOException {
+      boolean first = conn.firstLine;
+      conn.firstLine = false;
+      if (!conn.nameLine) {
+        if (first && equals(conn, KEEPALIVE)) {
+          conn.keepAlive = true;
+          conn.reset();
+          return false;
+        }
+        if (conn.batch < 0 && startsWith(conn, BATCH)) {
+          long count = parseInt(conn.line, BATCH.length, conn.length);
+          conn.length = 0;
+          if (count == Long.MIN_VALUE) {
+            JokeServer.log.info("Server read error.");
+            return true;
+          }
+          conn.batch = Worker.batchSize(count);
+          return false;
+        }
+        long uuid = parseInt(conn.line, 0, conn.length);
+        if (uuid == Long.MIN_VALUE) {
+          JokeServer.log.info("Server read error.");
+          return true;
+        }
+        conn.uuid = (int) uuid;
+        conn.nameLine = true;
+        return false;
+      }
+      if (!JokeServer.admission.allow(conn.uuid)) {
+        if (conn.batch >= 0) {
+          put(key, conn, Catalog.encode(Worker.BATCH + 1 + "\n"));
+        }
+        put(key, conn, Admission.LIMITED);
+        conn.reset();
+        conn.requested = true;
+        return !conn.keepAlive;
+      }
+      long start = System.nanoTime();
+      Catalog catalog = catalogs.get();
+      int category = catalog.category(JokeServer.mode.get());
+      int item;
+      if (conn.batch < 0) {
+        item = reply(key, conn, conn.uuid, catalog, category);
+      } else {
+        item = replyBatch(key, conn, catalog, category);
+      }
+      long time = System.nanoTime() - start;
+      int items = conn.batch < 0 ? 1 : conn.batch;
+      JokeServer.metrics.request(category, items, time);
+      JokeServer.log.access(conn.uuid, catalog, category, item, items, time);
+      conn.reset();
+      conn.requested = true;
+      return !conn.keepAlive;
+    }
+
+    // Keeps one byte of the first line of a request. Lines longer than the
+    // buffer cannot be a valid request and are left to fail parsing.
+    static void parse(Connection conn, byte b) {
+      if (conn.nameLine) {
+        return;
+      }
+      if (conn.length < conn.line.length) {
+        conn.line[conn.length] = b;
+      }
+      conn.length++;
+    }
+
+    // True if the current line is exactly text.
+    static boolean equals(Connection conn, byte[] text) {
+      return conn.length == text.length && startsWith(conn, text);
+    }
+
+    // True if the current line starts with text.
+    static boolean startsWith(Connection conn, byte[] text) {
+      if (conn.length < text.length) {
+        return false;
+      }
+      for (int i = 0; i < text.length; i++) {
+        if (conn.line[i] != text[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    // Parses a decimal int from bytes like Integer.parseInt, without building
+    // a String. Returns Long.MIN_VALUE if the bytes are not a valid int.
+    static long parseInt(byte[] bytes, int from, int to) {
+      if (to > bytes.length || from >= to) {
+        return Long.MIN_VALUE;
+      }
+      boolean negative = bytes[from] == '-';
+      int i = negative ? from + 1 : from;
+      if (i == to) {
+        return Long.MIN_VALUE;
+      }
+      long value = 0;
+      for (; i < to; i++) {
+        byte b = bytes[i];
+        if (b < '0' || b > '9') {
+          return Long.MIN_VALUE;
+        }
+        value = value * 10 + (b - '0');
+        if (value > (long) Integer.MAX_VALUE + 1) {
+          return Long.MIN_VALUE;
+        }
+      }
+      value = negative ? -value : value;
+      return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? Long.MIN_VALUE : value;
+    }
+
+    // Answers a BATCH request: a "BATCH n" line, then the next n items from
+    // the client's cycle, all from the catalog and mode current at the start.
+    // Returns the first item sent, -1 if there was none.
+    int replyBatch(SelectionKey key, Connection conn, Catalog catalog, int category)
+    throws IOException {
+      put(key, conn, Catalog.encode(Worker.BATCH + conn.batch + "\n"));
+      int first = -1;
+      for (int i = 0; i < conn.batch; i++) {
+        int item = reply(key, conn, conn.uuid, catalog, category);
+        first = i == 0 ? item : first;
+      }
+      return first;
+    }
+
+    // Chooses the next item for the client and copies its label and text
+    // lines from the catalog into the loop's write buffer. Returns the item,
+    // or -1 if it failed.
+    int reply(SelectionKey key, Connection conn, int uuid, Catalog catalog,
+    int category) throws IOException {
+      int item;
+      ByteBuffer record;
+      try {
+        item = Worker.nextLabel(clients, uuid, catalog, category);
+        record = catalog.record(category, item);
+      } catch (Exception e) {
+        put(key, conn, catalog.failed(category));
+        return -1;
+      }
+      put(key, conn, catalog.prefix);
+      put(key, conn, record);
+      return item;
+    }
+
+    // Appends bytes to the write buffer, draining it first if they do not
+    // fit. A reply bigger than the whole buffer goes straight to the channel.
+    void put(SelectionKey key, Connection conn, byte[] bytes) throws IOException {
+      if (writeBuffer.remaining() < bytes.length) {
+        drain(key, conn);
+      }
+      if (writeBuffer.remaining() < bytes.length) {
+        write(key, conn, ByteBuffer.wrap(bytes));
+      } else {
+        writeBuffer.put(bytes);
+      }
+    }
+
+    void put(SelectionKey key, Connection conn, ByteBuffer bytes) throws IOException {
+      if (writeBuffer.remaining() < bytes.remaining()) {
+        drain(key, conn);
+      }
+      if (writeBuffer.remaining() < bytes.remaining()) {
+        write(key, conn, bytes);
+      } else {
+        writeBuffer.put(bytes);
+      }
+    }
+
+    // Writes the gathered replies. Anything the socket does not take is kept
+    // on the connection, and reading stops until it has been sent.
+    void writeReplies(SelectionKey key, Connection conn, boolean done) throws IOException {
+      drain(key, conn);
+      if (conn.pending != null) {
+        conn.closing |= done;
+        key.interestOps(SelectionKey.OP_WRITE);
+      } else if (done) {
+        close(key);
+      }
+    }
+
+    // Moves the write buffer to the channel, or to the pending buffer when
+    // earlier replies are still waiting, and clears it for more replies.
+    void drain(SelectionKey key, Connection conn) throws IOException {
+      writeBuffer.flip();
+      write(key, conn, writeBuffer);
+      writeBuffer.clear();
+    }
+
+    // Writes buffer to the channel unless earlier replies are still pending,
+    // and keeps whatever the socket did not take on the connection.
+    static void write(SelectionKey key, Connection conn, ByteBuffer buffer) throws IOException {
+      if (conn.pending == null) {
+        ((SocketChannel) key.channel()).write(buffer);
+      }
+      if (buffer.hasRemaining()) {
+        ByteBuffer pending = conn.pending;
+        if (pending == null) {
+          pending = ByteBuffer.allocate(Math.max(buffer.remaining(), 1024));
+        } else if (pending.capacity() - pending.remaining() < buffer.remaining()) {
+          ByteBuffer grown = ByteBuffer.allocate(pending.remaining() + buffer.remaining() + 1024);
+          grown.put(pending);
+          pending = grown;
+        } else {
+          pending.compact();
+        }
+        pending.put(buffer).flip();
+        conn.pending = pending;
+      }
+    }
+
+    // Sends pending replies once the socket is writable again, then goes back
+    // to reading requests or closes the connection.
+    void flush(SelectionKey key) throws IOException {
+      Connection conn = (Connection) key.attachment();
+      ((SocketChannel) key.channel()).write(conn.pending);
+      if (!conn.pending.hasRemaining()) {
+        conn.pending = null;
+        if (conn.closing || !conn.keepAlive) {
+          close(key);
+        } else {
+          key.interestOps(SelectionKey.OP_READ);
+        }
+      }
+    }
+
+    // Closes keep-alive connections that have not sent a request within the
+    // idle timeout.
+    void closeIdle(long now) {
+      for (SelectionKey key : selector.keys()) {
+        Connection conn = (Connection) key.attachment();
+        if (conn != null && now - conn.lastActive > Worker.IDLE_TIMEOUT) {
+          close(key);
+        }
+      }
+    }
+
+    // While the server shuts down, closes keep-alive connections that are
+    // between requests: one has been answered, nothing is left to send and
+    // no request is partly read.
+    void closeDrained() {
+      for (SelectionKey key : selector.keys()) {
+        Connection conn = (Connection) key.attachment();
+        if (conn != null && conn.requested && conn.pending == null && conn.length == 0
+            && !conn.nameLine && conn.batch < 0 && conn.skip == 0 && conn.hello == 0) {
+          close(key);
+        }
+      }
+    }
+
+    static void close(SelectionKey key) {
+      key.cancel();
+      if (key.channel().isOpen()) {
+        JokeServer.metrics.active.decrement();
+        JokeServer.admission.finished();
+      }
+      try {
+        key.channel().close();
+      } catch (IOException ioe) { JokeServer.log.info(ioe.toString()); }
+    }
+  }
+}
+
+// AsyncLog takes the server's log lines off the request path. Workers and
+// event loops only claim a slot in a ring buffer and fill it in, with no
+// lock and, for cycle completions and access lines, no allocation: the
+// slots are preallocated and hold the fields of the line, which the log's
+// own thread formats and writes out in batches, flushing whenever the ring
+// is empty. System.out is a locked PrintStream, so printing from Workers
+// directly made them take turns at the lock and wait for the terminal.
+//
+// The ring is a bounded multi-producer queue: each slot has a sequence
+// number that says whether it is free for the producer at a position or
+// full for the consumer, and producers claim positions with a compare-and-
+// set on the tail. When the ring is full, joke.log.overflow decides:
+// "drop" (default) loses the line and counts it, "block" waits for space.
+//
+// Lines go to joke.log.file, or to stdout if it is not set. With
+// joke.log.access=true every request adds an access line:
+// 2018-09-22T10:15:30.123 access uuid=12 label=JA mode=JOKE items=1
+//   node=localhost:4545 latency_us=41
+class AsyncLog implements Runnable {
+  static final int MESSAGE = 0, ERROR = 1, COMPLETED = 2, ACCESS = 3;
+
+  // One line waiting to be written. Only the fields of its kind are set.
+  static final class Entry {
+    volatile long sequence;
+    int kind;
+    long time;
+    String text;
+    Throwable error;
+    Catalog catalog;
+    int category;
+    int item;
+    int items;
+    int uuid;
+    long nanos;
+  }
+
+  final Entry[] ring;
+  final int mask;
+  final AtomicLong tail = new AtomicLong();   // next position producers claim
+  long head;                                  // next position the log thread writes
+  final boolean block;
+  final boolean accessLog;
+  final File file;                            // null for stdout
+  OutputStream out;                           // file, opened by the first write
+  final LongAdder dropped = new LongAdder();
+  final LongAdder written = new LongAdder();
+  volatile String node = "";                  // this server, for access lines
+  volatile boolean waiting;                   // log thread is parked on an empty ring
+  Thread thread;
+
+  AsyncLog(int size, boolean block, boolean accessLog, File file) {
+    int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+    ring = new Entry[capacity];
+    for (int i = 0; i < capacity; i++) {
+      ring[i] = new Entry();
+      ring[i].sequence = i;
+    }
+    mask = capacity - 1;
+    this.block = block;
+    this.accessLog = accessLog;
+    this.file = file;
+  }
+
+  // Builds and starts the log from system properties:
+  //  joke.log.file      file to append to (default stdout)
+  //  joke.log.access    true for an access line per request (default false)
+  //  joke.log.buffer    lines the ring holds (default 8192)
+  //  joke.log.overflow  drop (default) or block when the ring is full
+  static AsyncLog fromProperties() {
+    String name = System.getProperty("joke.log.file");
+    AsyncLog log = new AsyncLog(Integer.getInteger("joke.log.buffer", 8192),
+      System.getProperty("joke.log.overflow", "drop").equals("block"),
+      Boolean.getBoolean("joke.log.access"), name != null ? new File(name) : null);
+    log.start();
+    return log;
+  }
+
+  void start() {
+    thread = new Thread(this, "joke-log");
+    thread.setDaemon(true);
+    thread.start();
+    // Whatever is still in the ring is written out when the server exits
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      public void run() { flush(); }
+    }, "joke-log-shutdown"));
+  }
+
+  void info(String text) {
+    long position = claim();
+    if (position >= 0) {
+      Entry entry = ring[(int) position & mask];
+      entry.kind = MESSAGE;
+      entry.text = text;
+      publish(entry, position);
+    }
+  }
+
+  void error(String text, Throwable error) {
+    long position = claim();
+    if (position >= 0) {
+      Entry entry = ring[(int) position & mask];
+      entry.kind = ERROR;
+      entry.text = text;
+      entry.error = error;
+      publish(entry, position);
+    }
+  }
+
+  // "NAME CYCLE COMPLETED", named when written.
+  void completed(Catalog catalog, int category) {
+    long position = claim();
+    if (position >= 0) {
+      Entry entry = ring[(int) position & mask];
+      entry.kind = COMPLETED;
+      entry.catalog = catalog;
+      entry.category = category;
+      publish(entry, position);
+    }
+  }
+
+  // A request from uuid that was sent items of category, the first of them
+  // item (-1 if it failed), served in nanos.
+  void access(int uuid, Catalog catalog, int category, int item, int items, long nanos) {
+    if (!accessLog) {
+      return;
+    }
+    long position = claim();
+    if (position >= 0) {
+      Entry entry = ring[(int) position & mask];
+      entry.kind = ACCESS;
+      entry.time = System.currentTimeMillis();
+      entry.uuid = uuid;
+      entry.catalog = catalog;
+      entry.category = category;
+      entry.item = item;
+      entry.items = items;
+      entry.nanos = nanos;
+      publish(entry, position);
+    }
+  }
+
+  // Claims the next free slot and returns its position, or -1 if the ring
+  // is full and lines are dropped.
+  long claim() {
+    while (true) {
+      long position = tail.get();
+      long sequence = ring[(int) position & mask].sequence;
+      if (sequence == position) {
+        if (tail.compareAndSet(position, position + 1)) {
+          return position;
+        }
+      } else if (sequence < position) {
+        // The slot still holds a line from the previous lap
+        if (!block) {
+          dropped.increment();
+          return -1;
+        }
+        wake();
+        Thread.yield();
+      }
+    }
+  }
+
+  // Hands a filled slot to the log thread, waking it if it is parked.
+  void publish(Entry entry, long position) {
+    entry.sequence = position + 1;
+    if (waiting) {
+      wake();
+    }
+  }
+
+  void wake() {
+    waiting = false;
+    LockSupport.unpark(thread);
+  }
+
+  public void run() {
+    StringBuilder batch = new StringBuilder(8192);
+    while (true) {
+      if (!drain(batch)) {
+        // Park until a producer publishes; the timeout covers a wakeup that
+        // raced with going to sleep
+        waiting = true;
+        if (!ready()) {
+          LockSupport.parkNanos(100000000L);
+        }
+        waiting = false;
+      }
+    }
+  }
+
+  boolean ready() {
+    return ring[(int) head & mask].sequence == head + 1;
+  }
+
+  // Formats every line in the ring into batch and writes it out, in chunks
+  // of 64 KB. Returns false if there was nothing to write. Only the log
+  // thread, or the shutdown hook once it is idle, calls this.
+  synchronized boolean drain(StringBuilder batch) {
+    if (!ready()) {
+      return false;
+    }
+    while (ready()) {
+      Entry entry = ring[(int) head & mask];
+      format(entry, batch);
+      entry.text = null;
+      entry.error = null;
+      entry.catalog = null;
+      entry.sequence = head + ring.length;
+      head++;
+      written.increment();
+      if (batch.length() >= 65536) {
+        write(batch);
+      }
+    }
+    write(batch);
+    return true;
+  }
+
+  void flush() {
+    drain(new StringBuilder());
+  }
+
+  final java.text.SimpleDateFormat timestamp =
+    new java.text.SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+
+  void format(Entry entry, StringBuilder out) {
+    switch (entry.kind) {
+      case ERROR:
+        out.append(entry.text).append('\n');
+        StringWriter trace = new StringWriter();
+        entry.error.printStackTrace(new PrintWriter(trace));
+        out.append(trace);
+        break;
+      case COMPLETED:
+        out.append(entry.catalog.name(entry.category)).append(" CYCLE COMPLETED\n");
+        break;
+      case ACCESS:
+        out.append(timestamp.format(new Date(entry.time))).append(" access uuid=")
+          .append(entry.uuid).append(" label=")
+          .append(entry.item < 0 ? "-" : entry.catalog.label(entry.category, entry.item))
+          .append(" mode=").append(entry.catalog.name(entry.category))
+          .append(" items=").append(entry.items)
+          .append(" node=").append(node)
+          .append(" latency_us=").append(entry.nanos / 1000).append('\n');
+        break;
+      default:
+        out.append(entry.text).append('\n');
+    }
+  }
+
+  void write(StringBuilder batch) {
+    if (batch.length() == 0) {
+      return;
+    }
+    if (file == null) {
+      System.out.print(batch);
+      System.out.flush();
+    } else {
+      try {
+        if (out == null) {
+          out = new FileOutputStream(file, true);
+        }
+        out.write(batch.toString().getBytes(Catalog.UTF8));
+        out.flush();
+      } catch (IOException ioe) {
+        System.out.println("Log file " + file + ": " + ioe);
+      }
+    }
+    batch.setLength(0);
+  }
+}
+
+// Metrics counts what the server does, for the metrics port and the snapshot
+// line that MetricsServer prints. Every counter is a LongAdder, which spreads
+// concurrent updates over per-thread cells, so recording a request never
+// makes Workers or event loops wait for each other; the cells are only
+// summed when the metrics are read, a few times a minute.
+class Metrics {
+  // Upper bounds of the service time buckets in microseconds; slower
+  // requests fall in a last, unbounded bucket
+  static final long[] BOUNDS = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000,
+    50000, 100000, 250000, 1000000};
+  // The same bounds in seconds, as written in the text format
+  static final String[] LE = new String[BOUNDS.length];
+  static {
+    for (int i = 0; i < BOUNDS.length; i++) {
+      LE[i] = java.math.BigDecimal.valueOf(BOUNDS[i], 6).stripTrailingZeros().toPlainString();
+    }
+  }
+  // Admin commands counted apart, the last one for anything unknown
+  static final String[] COMMANDS = {"toggle", "set", "sync", "mode", "workers", "limit",
+    "clients", "reload", "snapshot", "stats", "shutdown", "help", "quit", "unknown"};
+
+  volatile Category[] categories = new Category[0];   // grown as categories are served
+  final LongAdder accepted = new LongAdder();         // connections to the joke port
+  final LongAdder active = new LongAdder();           // connections being served now
+  final LongAdder rejected = new LongAdder();         // turned away with BUSY
+  final LongAdder keepAliveRefused = new LongAdder(); // closed after their first requests
+  final LongAdder adminRejected = new LongAdder();
+  final LongAdder[] commands = adders(COMMANDS.length);
+  final Histogram adminTime = new Histogram();
+  volatile ServerExecutor workers;                    // joke port executor, null for NIO
+
+  // What is counted for each category (mode) of the catalog.
+  static final class Category {
+    final LongAdder requests = new LongAdder();
+    final LongAdder items = new LongAdder();          // more than requests with BATCH
+    final LongAdder completions = new LongAdder();    // cycles completed
+    final Histogram time = new Histogram();
+  }
+
+  // Service times: how many requests took at most each bound, and their sum.
+  static final class Histogram {
+    final LongAdder[] buckets = adders(BOUNDS.length + 1);
+    final LongAdder nanos = new LongAdder();
+
+    void record(long time) {
+      int i = 0;
+      while (i < BOUNDS.length && time > BOUNDS[i] * 1000) {
+        i++;
+      }
+      buckets[i].increment();
+      nanos.add(time);
+    }
+  }
+
+  // Counts a request for category that sent items, served in nanos.
+  void request(int category, int items, long nanos) {
+    Category counts = category(category);
+    counts.requests.increment();
+    counts.items.add(items);
+    counts.time.record(nanos);
+  }
+
+  void completed(int category) {
+    category(category).completions.increment();
+  }
+
+  // Counts an admin command, by its name (e.g. TOGGLE), served in nanos.
+  void admin(String command, long nanos) {
+    int i = 0;
+    while (i < COMMANDS.length - 1 && !COMMANDS[i].equalsIgnoreCase(command)) {
+      i++;
+    }
+    commands[i].increment();
+    adminTime.record(nanos);
+  }
+
+  Category category(int category) {
+    Category[] current = categories;
+    return category < current.length ? current[category] : grow(category);
+  }
+
+  synchronized Category grow(int category) {
+    Category[] current = categories;
+    if (category >= current.length) {
+      Category[] grown = Arrays.copyOf(current, category + 1);
+      for (int i = current.length; i < grown.length; i++) {
+        grown[i] = new Category();
+      }
+      categories = current = grown;
+    }
+    return current[category];
+  }
+
+  static LongAdder[] adders(int n) {
+    LongAdder[] adders = new LongAdder[n];
+    for (int i = 0; i < n; i++) {
+      adders[i] = new LongAdder();
+    }
+    return adders;
+  }
+
+  // Writes every metric in the Prometheus text format. Categories are
+  // labelled with their names in the current catalog.
+  String format(ClientStore clients, Catalog catalog) {
+    StringBuilder out = new StringBuilder(4096);
+    Category[] current = categories;
+    type(out, "joke_requests_total", "counter", "Requests served, by mode.");
+    for (int c = 0; c < current.length; c++) {
+      sample(out, "joke_requests_total", mode(catalog, c), current[c].requests.sum());
+    }
+    type(out, "joke_items_total", "counter", "Jokes, proverbs and other items sent, by mode.");
+    for (int c = 0; c < current.length; c++) {
+      sample(out, "joke_items_total", mode(catalog, c), current[c].items.sum());
+    }
+    type(out, "joke_cycle_completions_total", "counter",
+      "Clients that were sent every item of a mode once more.");
+    for (int c = 0; c < current.length; c++) {
+      sample(out, "joke_cycle_completions_total", mode(catalog, c), current[c].completions.sum());
+    }
+    type(out, "joke_request_seconds", "histogram", "Service time of joke requests, by mode.");
+    for (int c = 0; c < current.length; c++) {
+      histogram(out, "joke_request_seconds", mode(catalog, c), current[c].time);
+    }
+    type(out, "joke_connections_total", "counter", "Connections accepted on the joke port.");
+    sample(out, "joke_connections_total", "", accepted.sum());
+    type(out, "joke_connections_active", "gauge", "Joke port connections being served.");
+    sample(out, "joke_connections_active", "", active.sum());
+    type(out, "joke_connections_rejected_total", "counter",
+      "Connections turned away because the worker queue was full.");
+    sample(out, "joke_connections_rejected_total", "", rejected.sum());
+    type(out, "joke_keepalive_refused_total", "counter",
+      "Keep-alive connections closed after the requests sent at once, to spare pool threads.");
+    sample(out, "joke_keepalive_refused_total", "", keepAliveRefused.sum());
+    Admission admission = JokeServer.admission;
+    type(out, "joke_connections_in_flight", "gauge",
+      "Connections accepted and not yet closed, queued ones included.");
+    sample(out, "joke_connections_in_flight", "", admission.connections.get());
+    type(out, "joke_limited_total", "counter",
+      "Connections and requests refused, by the limit they were over.");
+    sample(out, "joke_limited_total", "{limit=\"connections\"}",
+      admission.limitedConnections.sum());
+    sample(out, "joke_limited_total", "{limit=\"address\"}", admission.limitedAddresses.sum());
+    sample(out, "joke_limited_total", "{limit=\"client\"}", admission.limitedClients.sum());
+    ServerExecutor executor = workers;
+    if (executor != null && executor.executor instanceof ThreadPoolExecutor) {
+      ThreadPoolExecutor pool = (ThreadPoolExecutor) executor.executor;
+      type(out, "joke_workers_busy", "gauge", "Worker threads serving a connection.");
+      sample(out, "joke_workers_busy", "", pool.getActiveCount());
+      type(out, "joke_worker_queue", "gauge", "Accepted connections waiting for a worker.");
+      sample(out, "joke_worker_queue", "", pool.getQueue().size());
+    }
+    type(out, "joke_clients", "gauge", "Clients in this server's client store.");
+    sample(out, "joke_clients", "", clients.size());
+    ClientStore local = clients instanceof PartitionedClientStore
+      ? ((PartitionedClientStore) clients).local : clients;
+    if (local instanceof ClientRegistry) {
+      ClientRegistry registry = (ClientRegistry) local;
+      type(out, "joke_registry_lookups_total", "counter", "Client lookups, by result.");
+      sample(out, "joke_registry_lookups_total", "{result=\"hit\"}", registry.hits.sum());
+      sample(out, "joke_registry_lookups_total", "{result=\"miss\"}", registry.misses.sum());
+      type(out, "joke_registry_evictions_total", "counter", "Idle clients evicted.");
+      sample(out, "joke_registry_evictions_total", "", registry.evictions.sum());
+    }
+    type(out, "joke_catalog_items", "gauge", "Items in the catalog, by mode.");
+    for (int c = 0; c < catalog.size(); c++) {
+      sample(out, "joke_catalog_items", mode(catalog, c), catalog.count(c));
+    }
+    long state = JokeServer.mode.state();
+    type(out, "joke_mode", "gauge", "Mode being served (1), with its name.");
+    sample(out, "joke_mode", mode(catalog, catalog.category(ServerMode.category(state))), 1);
+    type(out, "joke_mode_version", "gauge", "Number of mode changes, counted across peers.");
+    sample(out, "joke_mode_version", "", ServerMode.version(state));
+    type(out, "joke_admin_commands_total", "counter", "Admin commands, by command.");
+    for (int i = 0; i < COMMANDS.length; i++) {
+      sample(out, "joke_admin_commands_total", "{command=\"" + COMMANDS[i] + "\"}",
+        commands[i].sum());
+    }
+    type(out, "joke_admin_seconds", "histogram", "Service time of admin commands.");
+    histogram(out, "joke_admin_seconds", "", adminTime);
+    type(out, "joke_admin_rejected_total", "counter", "Admin connections turned away.");
+    sample(out, "joke_admin_rejected_total", "", adminRejected.sum());
+    type(out, "joke_log_lines_total", "counter", "Log lines written.");
+    sample(out, "joke_log_lines_total", "", JokeServer.log.written.sum());
+    type(out, "joke_log_dropped_total", "counter", "Log lines dropped because the log was full.");
+    sample(out, "joke_log_dropped_total", "", JokeServer.log.dropped.sum());
+    return out.toString();
+  }
+
+  static String mode(Catalog catalog, int category) {
+    return "{mode=\"" + (category < catalog.size() ? catalog.name(category) : "" + category) + "\"}";
+  }
+
+  static void type(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  static void sample(StringBuilder out, String name, String labels, long value) {
+    out.append(name).append(labels).append(' ').append(value).append('\n');
+  }
+
+  // Buckets are cumulative in the text format, with the bound in seconds.
+  static void histogram(StringBuilder out, String name, String labels, Histogram histogram) {
+    String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+    long count = 0;
+    for (int i = 0; i <= BOUNDS.length; i++) {
+      count += histogram.buckets[i].sum();
+      String le = i < BOUNDS.length ? LE[i] : "+Inf";
+      sample(out, name + "_bucket", prefix + "le=\"" + le + "\"}", count);
+    }
+    out.append(name).append("_sum").append(labels).append(' ')
+      .append(histogram.nanos.sum() / 1e9).append('\n');
+    sample(out, name + "_count", labels, count);
+  }
+
+  // Totals for the snapshot line: requests per category and service time
+  // buckets over all of them.
+  static final class Snapshot {
+    final long time = System.nanoTime();
+    long[] requests;
+    final long[] buckets = new long[BOUNDS.length + 1];
+    long completions;
+    long rejected;
+    long limited;
+  }
+
+  Snapshot snapshot() {
+    Snapshot snapshot = new Snapshot();
+    Category[] current = categories;
+    snapshot.requests = new long[current.length];
+    for (int c = 0; c < current.length; c++) {
+      snapshot.requests[c] = current[c].requests.sum();
+      snapshot.completions += current[c].completions.sum();
+      for (int i = 0; i <= BOUNDS.length; i++) {
+        snapshot.buckets[i] += current[c].time.buckets[i].sum();
+      }
+    }
+    snapshot.rejected = rejected.sum();
+    snapshot.limited = JokeServer.admission.limited();
+    return snapshot;
+  }
+
+  // One line with the request rate per mode and service time percentiles
+  // between two snapshots, and the current connections and clients.
+  String describe(Snapshot from, Snapshot to, ClientStore clients, Catalog catalog) {
+    double seconds = Math.max(1, to.time - from.time) / 1e9;
+    long total = 0;
+    StringBuilder modes = new StringBuilder();
+    for (int c = 0; c < to.requests.length; c++) {
+      long requests = to.requests[c] - (c < from.requests.length ? from.requests[c] : 0);
+      total += requests;
+      modes.append(modes.length() == 0 ? " (" : ", ")
+        .append(c < catalog.size() ? catalog.name(c) : "" + c).append(' ')
+        .append(rate(requests, seconds));
+    }
+    if (modes.length() > 0) {
+      modes.append(')');
+    }
+    long[] buckets = new long[to.buckets.length];
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = to.buckets[i] - from.buckets[i];
+    }
+    return "Metrics: " + rate(total, seconds) + " requests/s" + modes
+      + ", p50 " + percentile(buckets, 0.5) + ", p99 " + percentile(buckets, 0.99)
+      + ", " + active.sum() + " active, " + (to.rejected - from.rejected) + " rejected, "
+      + (to.limited - from.limited) + " limited, "
+      + (to.completions - from.completions) + " cycles completed, "
+      + clients.size() + " clients";
+  }
+
+  static String rate(long count, double seconds) {
+    return String.format("%.1f", count / seconds);
+  }
+
+  // The bucket bound that the fraction q of requests took at most.
+  static String percentile(long[] buckets, double q) {
+    long total = 0;
+    for (long count : buckets) {
+      total += count;
+    }
+    if (total == 0) {
+      return "-";
+    }
+    long seen = 0;
+    for (int i = 0; i < BOUNDS.length; i++) {
+      seen += buckets[i];
+      if (seen >= q * total) {
+        return "<= " + BOUNDS[i] / 1000.0 + " ms";
+      }
+    }
+    return "> " + BOUNDS[BOUNDS.length - 1] / 1000 + " ms";
+  }
+}
+
+// MetricsServer serves Metrics in the Prometheus text format, to an HTTP GET
+// from a scraper or curl:
+// > curl localhost:5060/metrics
+// on joke.metricsPort (default the admin port + 10, so 5060 and 5061 for the
+// secondary; 0 turns it off), bound to the loopback address only. Scrapes
+// are served one at a time on the metrics thread, away from joke traffic.
+// Every joke.metrics.log seconds (default 60, 0 for never) it also prints a
+// snapshot line with the request rates and latency since the last one, and
+// a last one when the server shuts down.
+class MetricsServer implements Runnable {
+  // Milliseconds to wait for a scraper's request
+  static final int READ_TIMEOUT = 2000;
+
+  final int port;
+  final ClientStore clients;
+  final CatalogWatcher catalogs;
+  Metrics.Snapshot last;
+
+  MetricsServer(int port, ClientStore clients, CatalogWatcher catalogs) {
+    this.port = port;
+    this.clients = clients;
+    this.catalogs = catalogs;
+  }
+
+  static MetricsServer fromProperties(int adminPort, ClientStore clients,
+  CatalogWatcher catalogs) {
+    final MetricsServer server = new MetricsServer(
+      Integer.getInteger("joke.metricsPort", adminPort + 10), clients, catalogs);
+    if (server.port > 0) {
+      Thread thread = new Thread(server, "joke-metrics");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    server.last = JokeServer.metrics.snapshot();
+    long interval = Long.getLong("joke.metrics.log", 60);
+    if (interval > 0) {
+      Executors.newSingleThreadScheduledExecutor(
+        new ServerExecutor.NamedThreadFactory("joke-metrics-log"))
+        .scheduleAtFixedRate(new Runnable() {
+          public void run() { server.log(); }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+    return server;
+  }
+
+  public void run() {
+    try {
+      ServerSocket serversocket = new ServerSocket(port, 6, InetAddress.getLoopbackAddress());
+      System.out.println("Metrics on port " + port + ".");
+      while (true) {
+        Socket socket = serversocket.accept();
+        try {
+          serve(socket);
+        } catch (IOException ioe) {
+          // scraper went away, nothing to clean up but the socket
+        } finally {
+          socket.close();
+        }
+      }
+    } catch (IOException ioe) { JokeServer.log.info("Metrics port " + port + ": " + ioe); }
+  }
+
+  // Reads the request line and headers, which are not used, then answers
+  // with the metrics whatever was asked for.
+  void serve(Socket socket) throws IOException {
+    socket.setSoTimeout(READ_TIMEOUT);
+    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    String line;
+    while ((line = in.readLine()) != null && !line.isEmpty()) {
+      // request line and headers
+    }
+    byte[] body = JokeServer.metrics.format(clients, catalogs.get()).getBytes(Catalog.UTF8);
+    OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+    out.write(("HTTP/1.0 200 OK\r\n"
+      + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+      + "Content-Length: " + body.length + "\r\n\r\n").getBytes(Catalog.UTF8));
+    out.write(body);
+    out.flush();
+  }
+
+  synchronized void log() {
+    Metrics.Snapshot now = JokeServer.metrics.snapshot();
+    JokeServer.log.info(JokeServer.metrics.describe(last, now, clients, catalogs.get()));
+    last = now;
+  }
+}
+
+// Shutdown stops the server without failing requests, so that servers can
+// be restarted one at a time while JokeClients keep going. It runs on
+// SIGTERM or Ctrl-C (from a JVM shutdown hook) or the admin SHUTDOWN
+// command, once however it is asked for:
+//  1. The joke and admin ports are closed. New connections are refused and
+//     JokeClient fails over to the next server.
+//  2. Connections already accepted are served. Queued ones still get a
+//     Worker, requests being read or answered are finished, and keep-alive
+//     connections are closed once they are between requests (a JokeClient
+//     retries on a new connection, and then fails over).
+//  3. When no connection is left, or joke.shutdown.timeout seconds (default
+//     10) have passed, a last metrics snapshot line is logged, the mapped
+//     client store is written to its file and the log is flushed. Anything
+//     still open is cut off as the process exits.
+class Shutdown {
+  // Milliseconds that connections are given to finish
+  volatile long timeout = Long.getLong("joke.shutdown.timeout", 10) * 1000;
+  // Milliseconds between looks at the connections left
+  static final int POLL = 20;
+
+  // Cleared before the ports are closed, so accept loops know to end
+  volatile boolean accepting = true;
+  // Set once they are closed, so a client whose idle connection is closed
+  // does not reconnect to this server
+  volatile boolean draining;
+  final AtomicBoolean started = new AtomicBoolean();
+  final CountDownLatch done = new CountDownLatch(1);
+  // Counted down when the joke port's accept loop has ended. The port is
+  // only really closed then, because a thread blocked in accept keeps it
+  // open until it wakes up, and connections made meanwhile would be reset.
+  final CountDownLatch closed = new CountDownLatch(1);
+  // Workers of the blocking front end, so idle keep-alive ones can be closed
+  final Set<Worker> workers = Collections.newSetFromMap(new ConcurrentHashMap<Worker, Boolean>());
+
+  // What there is to stop and flush, set by JokeServer.main as it starts
+  volatile ServerSocket jokePort;
+  volatile NioJokeServer nio;
+  volatile ModeServer admin;
+  volatile MetricsServer metricsServer;
+  volatile ClientStore clients;
+
+  // Drains the server when the JVM is asked to exit.
+  void installHook() {
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      public void run() { shutdown("signal"); }
+    }, "joke-shutdown"));
+  }
+
+  // Drains the server on a thread of its own and exits, for the admin
+  // command, which is answered first.
+  void shutdownAndExit() {
+    new Thread(new Runnable() {
+      public void run() {
+        shutdown("admin command");
+        System.exit(0);
+      }
+    }, "joke-shutdown").start();
+  }
+
+  // Drains the server the first time it is called; later calls wait until
+  // that is done.
+  void shutdown(String cause) {
+    if (!started.compareAndSet(false, true)) {
+      try {
+        done.await();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      return;
+    }
+    try {
+      drain(cause);
+    } catch (RuntimeException re) {
+      JokeServer.log.error("Shutdown failed.", re);
+    } finally {
+      JokeServer.log.flush();
+      done.countDown();
+    }
+  }
+
+  void drain(String cause) {
+    long start = System.currentTimeMillis();
+    long deadline = start + timeout;
+    accepting = false;
+    JokeServer.log.info("Shutting down on " + cause + ", "
+      + JokeServer.admission.connections.get() + " connections to finish within "
+      + timeout / 1000 + " s.");
+    close(jokePort);
+    if (nio != null) {
+      nio.stop();
+    }
+    if (admin != null) {
+      admin.stop();
+    }
+    try {
+      closed.await(1, TimeUnit.SECONDS);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+    draining = true;
+
+    // Closes keep-alive connections as they become idle until none is left
+    while (JokeServer.admission.connections.get() > 0
+        && System.currentTimeMillis() < deadline) {
+      closeIdle();
+      try {
+        Thread.sleep(POLL);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    int left = JokeServer.admission.connections.get();
+    if (left > 0) {
+      JokeServer.log.info(left + " connections still open at the deadline are cut off.");
+    }
+
+    if (metricsServer != null) {
+      metricsServer.log();
+    }
+    ClientStore local = clients instanceof PartitionedClientStore
+      ? ((PartitionedClientStore) clients).local : clients;
+    if (local instanceof MappedClientStore) {
+      ((MappedClientStore) local).sync();
+    }
+    JokeServer.log.info("Shut down in " + (System.currentTimeMillis() - start) + " ms.");
+  }
+
+  // Ends the wait of every Worker blocked reading its next keep-alive
+  // request, and has the event loops close their idle connections.
+  void closeIdle() {
+    for (Worker worker : workers) {
+      if (worker.idle && worker.requested) {
+        try {
+          worker.socket.shutdownInput();
+        } catch (IOException ioe) {
+          // already closed
+        }
+      }
+    }
+    if (nio != null) {
+      nio.wakeup();
+    }
+  }
+
+  static void close(ServerSocket socket) {
+    try {
+      if (socket != null) {
+        socket.close();
+      }
+    } catch (IOException ioe) { JokeServer.log.info(ioe.toString()); }
+  }
+}
+
+// Main class of JokeServer. Iniitalizes variables to store client data, and
+// loads the catalog of joke and proverb labels and full text. Launches asynchronous ModeServer
+// thread to connect to JokeClientAdmin, and listens for JokeClient socket
+// connection to run Worker task. JokeServer can be launched with no argument
+// and with 'secondary' argument to run a second server.
+public class JokeServer {
+  public static void main(String args[]) throws IOException {
+    // Converts a text catalog to the binary format that is memory-mapped:
+    // > java JokeServer compile-catalog jokes.txt jokes.jcat
+    if (args.length == 3 && args[0].equals("compile-catalog")) {
+      Catalog.compile(new File(args[1]), new File(args[2]));
+      return;
+    }
+
+    // Number of requests for OS to queue: as many as the pool queues, so that
+    // a burst reaches the executor and its rejection policy rather than
+    // being dropped by the OS and retried by the clients a second later
+    int queueLength = Integer.getInteger("joke.backlog", Integer.getInteger("joke.queue", 256));
+    // Set port number for socket connection
+    int port = 4545;
+    // Variable to hold default server name, used when no argument is provided
+    // in the command line
+    String serverName = "localhost";
+    Socket socket;
+    InetAddress inetAddress = InetAddress.getByName(serverName);
+
+    // Secondary server uses the second pair of ports and marks its replies <S2>
+    boolean secondary = args.length > 0 && args[0].equals("secondary");
+    int adminPort = 5050;
+    if (secondary) {
+      port = 4546;
+      adminPort = 5051;
+    }
+    // Either pair can be moved, to run more servers on one host
+    port = Integer.getInteger("joke.port", port);
+    adminPort = Integer.getInteger("joke.adminPort", adminPort);
+    if (secondary) {
+      System.out.println
+      ("Server two: " + serverName + ", port " + port);
+    }
+    else {
+      System.out.println
+      ("Server one: " + serverName + ", port " + port);
+    }
+
+    // Access log lines name the server they were served by
+    log.node = serverName + ":" + port;
+
+    // Jokes, proverbs and any other categories this server sends, reloaded
+    // when the catalog file changes
+    CatalogWatcher catalogs = CatalogWatcher.fromProperties(secondary);
+
+    // Store to hold client data so that it can grow as more new
+    // clients connect to the servers
+    ClientStore clientData = ClientStore.fromProperties(port, catalogs.get().size());
+
+    // "Create a Mode thread and send it off, asynchronously, to get MODE instructions"
+    // Mode changes are shared with the peers in joke.peers, if any
+    ModeServer modeServer = new ModeServer(adminPort, catalogs,
+      ModePeers.fromProperties(catalogs), clientData);
+    Thread thread = new Thread(modeServer);
+    thread.start();
+
+    // Metrics on the admin port + 10, and a snapshot line now and then
+    MetricsServer metricsServer = MetricsServer.fromProperties(adminPort, clientData, catalogs);
+
+    // SIGTERM, Ctrl-C or the admin SHUTDOWN command drain the server before
+    // it exits
+    shutdown.admin = modeServer;
+    shutdown.metricsServer = metricsServer;
+    shutdown.clients = clientData;
+    shutdown.installHook();
+
+    // Non-blocking front end serves the joke port from a few event loops
+    if (System.getProperty("joke.frontend", "blocking").equals("nio")) {
+      int loops = Integer.getInteger("joke.eventLoops",
+        Runtime.getRuntime().availableProcessors());
+      NioJokeServer nio = new NioJokeServer(inetAddress, port, queueLength, loops, clientData,
+        catalogs);
+      shutdown.nio = nio;
+      try {
+        nio.run();
+      } finally {
+        shutdown.closed.countDown();
+      }
+      return;
+    }
+
+    // Executor that runs a Worker task for every accepted connection
+    ServerExecutor executor = ServerExecutor.fromProperties("joke-worker");
+    JokeServer.metrics.workers = executor;
+
+    // Create server socket (using queue length, port number, server name) to handle
+    // requests from client.
+    ServerSocket serversocket = new ServerSocket(port, queueLength, inetAddress);
+    shutdown.jokePort = serversocket;
+
+    // While loop runs until the server shuts down and closes the socket.
+    while(shutdown.accepting) {
+      // Listens for a connection to the socket, 'sock', and accepts the connection
+      try {
+        socket = serversocket.accept();
+      } catch(SocketException se) {
+        if(!shutdown.accepting) {
+          break;
+        }
+        throw se;
+      }
+      /* Create and submits a new Worker task; passes in socket that accepted
+      a connection as the parameter. Worker task will return JOKE or PROVERB
+      Results from lookup will be written to the socket, read by the client,
+      and displayed in client console. */
+      JokeServer.metrics.accepted.increment();
+      // Connections over a limit are answered here, without a thread
+      if(!admission.admit(socket.getInetAddress())) {
+        Admission.refuse(socket);
+        continue;
+      }
+      if(!executor.submit(admission.finishing(new Worker(socket, clientData, catalogs)),
+        socket)) {
+        admission.finished();
+        JokeServer.metrics.rejected.increment();
+      }
+    }
+    shutdown.closed.countDown();
+  }
+
+  // Catalog category being served: 0 for JOKE, 1 for PROVERB in the default
+  // catalog. Shared by every Worker and changed atomically by ModeWorker.
+  public static final ServerMode mode = new ServerMode();
+
+  // Counters and histograms of everything the server does, see Metrics.
+  static final Metrics metrics = new Metrics();
+
+  // Log lines from serving threads, written out by a thread of its own.
+  static final AsyncLog log = AsyncLog.fromProperties();
+
+  // Connection and request limits, see Admission.
+  static final Admission admission = Admission.fromProperties();
+
+  // Graceful stop on a signal or admin command, see Shutdown.
+  static final Shutdown shutdown = new Shutdown();
 
 }
@@ -0,0 +1,14 @@
+#!/bin/sh
+# Runs the client store stress check, prints the bytes each protocol sends
+# per reply, then runs every benchmark at 1, 4 and 16 threads with the gc
+# profiler, which adds allocation rate and bytes per operation to each
+# result. Arguments are passed on to JMH, e.g. a benchmark name pattern or
+# -f 3 for more forks:
+# > ./run.sh Loopback
+cd "$(dirname "$0")"
+java -cp target/benchmarks.jar joke.ClientStoreStress 16 || exit 1
+java -cp target/benchmarks.jar joke.WireSize || exit 1
+for threads in 1 4 16; do
+  java -jar target/benchmarks.jar -t "$threads" -prof gc \
+    -rf json -rff "target/jmh-t$threads.json" "$@" || exit 1
+done
@@ -0,0 +1,68 @@
+package joke;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Limiter decisions: a request's uuid against its rate (Admission.allow)
+// and a connection against the connection and source address limits
+// (Admission.admit, then finished). With a high rate every decision allows;
+// with a low one nearly every decision refuses, the case of a client that
+// is hammering the server. Uuids are spread over 1000 buckets, so threads
+// contend on a bucket only as often as real clients would.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdmissionBenchmark {
+  @Param({"1000000000", "1"})
+  double rate;
+
+  Admission admission;
+  InetAddress[] addresses = new InetAddress[1000];
+
+  @Setup
+  public void setup() throws Exception {
+    admission = new Admission(100000, 65536, rate, 10, rate, 10);
+    for (int i = 0; i < addresses.length; i++) {
+      addresses[i] = InetAddress.getByAddress(new byte[] { 10, 0, (byte) (i >> 8), (byte) i });
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Cursor {
+    int next = (int) (Thread.currentThread().getId() * 7919 % 1000);
+
+    int next() {
+      next = next + 1 < 1000 ? next + 1 : 0;
+      return next;
+    }
+  }
+
+  @Benchmark
+  public boolean allow(Cursor cursor) {
+    return admission.allow(cursor.next());
+  }
+
+  @Benchmark
+  public boolean admit(Cursor cursor) {
+    boolean admitted = admission.admit(addresses[cursor.next()]);
+    if (admitted) {
+      admission.finished();
+    }
+    return admitted;
+  }
+}
@@ -0,0 +1,79 @@
+package joke;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// Concurrency check of the client stores rather than a benchmark: many
+// threads take items for the same few uuids at once, and afterwards every
+// uuid must have been sent every item exactly once per cycle and told of
+// every completed cycle exactly once. Lost or repeated updates of a
+// client's cycle show up as bad counts. Exits with status 1 if any store
+// fails.
+//
+// > java -cp target/benchmarks.jar joke.ClientStoreStress [threads]
+public class ClientStoreStress {
+  static final int UUIDS = 64;       // clients shared by all the threads
+  static final int COUNT = 1000;     // items per cycle
+  static final int CYCLES = 16;      // cycles each client goes through
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    File file = File.createTempFile("clients", ".dat");
+    file.delete();
+    ClientStore[] stores = {
+      new ClientRegistry(),
+      new OffHeapClientStore(10000, 4, false),
+      MappedClientStore.open(file, 10000, 4, false, "shutdown", 0)
+    };
+    boolean failed = false;
+    for (ClientStore store : stores) {
+      int bad = check(store, threads);
+      System.out.println(store.getClass().getSimpleName() + ": " + threads + " threads, "
+        + CYCLES + " cycles of " + COUNT + " items for " + UUIDS + " clients, "
+        + bad + " bad counts");
+      failed |= bad != 0;
+    }
+    file.delete();
+    System.exit(failed ? 1 : 0);
+  }
+
+  // Deals the requests out to the threads round robin, so every client gets
+  // exactly CYCLES * COUNT of them from several threads at once.
+  static int check(final ClientStore store, final int threads) throws InterruptedException {
+    final AtomicIntegerArray counts = new AtomicIntegerArray(UUIDS * COUNT);
+    final AtomicIntegerArray completed = new AtomicIntegerArray(UUIDS);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int t = 0; t < threads; t++) {
+      final int first = t;
+      executor.execute(new Runnable() {
+        public void run() {
+          for (int i = first; i < UUIDS * COUNT * CYCLES; i += threads) {
+            int client = i % UUIDS;
+            int next = store.next(client * 7919, 0, COUNT);
+            if ((next & ClientStore.COMPLETED) != 0) {
+              completed.incrementAndGet(client);
+            }
+            counts.incrementAndGet(client * COUNT + (next & ~ClientStore.COMPLETED));
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.MINUTES);
+    int bad = 0;
+    for (int i = 0; i < UUIDS * COUNT; i++) {
+      if (counts.get(i) != CYCLES) {
+        bad++;
+      }
+    }
+    for (int client = 0; client < UUIDS; client++) {
+      if (completed.get(client) != CYCLES) {
+        bad++;
+      }
+    }
+    return bad;
+  }
+}
@@ -0,0 +1,118 @@
+package joke;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Response encoding: Worker.printJokeOrProverb taking the next item for a
+// client and writing its record to the reply stream, the same as a binary
+// protocol reply frame, plain and precompressed, and Catalog.write on its
+// own. The stream discards what it is given, so only the server's side
+// of the copy is measured. The built-in catalog is on the heap; the mapped
+// one is a compiled .jcat of 100,000 jokes, read from outside the heap.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+  @Param({"builtin", "mapped"})
+  String catalogKind;
+
+  @Param({"false", "true"})
+  boolean secondary;
+
+  Catalog catalog;
+  ClientStore clients = new ClientRegistry();
+  PrintStream out = new PrintStream(new Discard());
+  ByteBuffer header = ByteBuffer.allocate(BinaryProtocol.REPLY_HEADER);
+  File text;
+  File binary;
+  DeflatedCatalog deflated;
+  int item;
+
+  @Setup
+  public void setup() throws IOException {
+    // Cycle completions go to JokeServer.log, whose thread writes them to
+    // stdout (joke.log.file is not set here), which would flood the
+    // benchmark's output with a line every few operations
+    System.setOut(new PrintStream(new Discard()));
+    if (catalogKind.equals("builtin")) {
+      catalog = Catalog.builtIn(secondary);
+    } else {
+      text = File.createTempFile("jokes", ".txt");
+      binary = File.createTempFile("jokes", ".jcat");
+      generate(text, 100000);
+      Catalog.compile(text, binary);
+      catalog = Catalog.load(binary, secondary);
+    }
+    deflated = new DeflatedCatalog(catalog, CatalogWatcher.DICTIONARY);
+  }
+
+  // Writes a text catalog of count jokes.
+  static void generate(File text, int count) throws IOException {
+    BufferedWriter writer = new BufferedWriter(new FileWriter(text));
+    try {
+      for (int i = 0; i < count; i++) {
+        writer.write("JOKE\tJ" + i + "\tJoke number " + i
+          + ", about as funny as the one before it.\n");
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (text != null) {
+      text.delete();
+      binary.delete();
+    }
+  }
+
+  @Benchmark
+  public void printJokeOrProverb() {
+    Worker.printJokeOrProverb(out, clients, 1, catalog, 0);
+  }
+
+  @Benchmark
+  public int binaryReply() throws IOException {
+    return BinaryProtocol.writeReply(out, header, clients, 1, catalog, null, 0, 0);
+  }
+
+  @Benchmark
+  public int deflateReply() throws IOException {
+    return BinaryProtocol.writeReply(out, header, clients, 1, catalog, deflated, 0, 0);
+  }
+
+  @Benchmark
+  public void write() throws IOException {
+    item = item + 1 < catalog.count(0) ? item + 1 : 0;
+    catalog.write(0, item, out);
+  }
+
+  // Reply stream of the benchmark: accepts and drops every byte.
+  static final class Discard extends OutputStream {
+    public void write(int b) { }
+    public void write(byte[] b, int off, int len) { }
+  }
+}
@@ -0,0 +1,147 @@
+package joke;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A full request and reply through a server started in the benchmark's JVM
+// on a free loopback port, with the client code of JokeClient: a new
+// connection per request (oneshot) or one kept-alive connection per
+// benchmark thread (keepalive), against the blocking or the NIO front end.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+  @Param({"blocking", "nio"})
+  String frontend;
+
+  @Param({"oneshot", "keepalive"})
+  String connection;
+
+  InetAddress loopback;
+  int port;
+  ServerSocket serverSocket;
+  Balancer balancer;
+  Endpoint endpoint;
+  final AtomicInteger uuids = new AtomicInteger();
+
+  @Setup(Level.Trial)
+  public void startServer() throws Exception {
+    System.setOut(new PrintStream(new EncodeBenchmark.Discard()));
+    loopback = InetAddress.getLoopbackAddress();
+    final ClientStore clients = new ClientRegistry();
+    final CatalogWatcher catalogs = new CatalogWatcher(null, false);
+    if (frontend.equals("nio")) {
+      ServerSocket probe = new ServerSocket(0, 1, loopback);
+      port = probe.getLocalPort();
+      probe.close();
+      final NioJokeServer server = new NioJokeServer(loopback, port, 1024,
+        Runtime.getRuntime().availableProcessors(), clients, catalogs);
+      daemon(new Runnable() {
+        public void run() {
+          try {
+            server.run();
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      });
+    } else {
+      serverSocket = new ServerSocket(0, 1024, loopback);
+      port = serverSocket.getLocalPort();
+      final ServerExecutor executor = ServerExecutor.fromProperties("joke-worker");
+      JokeServer.metrics.workers = executor;
+      daemon(new Runnable() {
+        public void run() {
+          try {
+            while (true) {
+              Socket socket = serverSocket.accept();
+              executor.submit(new Worker(socket, clients, catalogs), socket);
+            }
+          } catch (IOException e) {
+            // server socket closed at teardown
+          }
+        }
+      });
+    }
+    endpoint = new Endpoint(loopback.getHostAddress(), port);
+    balancer = new Balancer(Collections.singletonList(endpoint), "pinned", 1000, 5000, 0, 0);
+    waitForServer();
+  }
+
+  @TearDown(Level.Trial)
+  public void stopServer() throws IOException {
+    if (serverSocket != null) {
+      serverSocket.close();
+    }
+  }
+
+  // One client per benchmark thread, with its own uuid and connection.
+  @State(Scope.Thread)
+  public static class Client {
+    int uuid;
+    KeepAliveConnection[] connections = new KeepAliveConnection[1];
+
+    @Setup(Level.Trial)
+    public void setup(LoopbackBenchmark bench) {
+      uuid = bench.uuids.incrementAndGet();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      if (connections[0] != null) {
+        connections[0].close();
+      }
+    }
+  }
+
+  @Benchmark
+  public String[] request(Client client) throws IOException {
+    if (connection.equals("keepalive")) {
+      return JokeClient.requestKeepAlive(client.connections, endpoint, client.uuid, "bench",
+        balancer);
+    }
+    return JokeClient.request(endpoint, client.uuid, "bench", balancer);
+  }
+
+  // The NIO server binds its port on its own thread.
+  void waitForServer() throws InterruptedException {
+    for (int i = 0; i < 100; i++) {
+      try {
+        new Socket(loopback, port).close();
+        return;
+      } catch (IOException e) {
+        Thread.sleep(50);
+      }
+    }
+    throw new IllegalStateException("Server did not start on port " + port);
+  }
+
+  static void daemon(Runnable task) {
+    Thread thread = new Thread(task, "joke-bench-server");
+    thread.setDaemon(true);
+    thread.start();
+  }
+}
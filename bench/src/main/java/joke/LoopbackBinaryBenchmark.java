@@ -0,0 +1,9 @@
+package joke;
+
+import org.openjdk.jmh.annotations.Fork;
+
+// LoopbackBenchmark with JokeClient speaking the binary protocol, which is
+// chosen once per JVM by its system property.
+@Fork(value = 1, jvmArgsAppend = "-Djoke.protocol=binary")
+public class LoopbackBinaryBenchmark extends LoopbackBenchmark {
+}
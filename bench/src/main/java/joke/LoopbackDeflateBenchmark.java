@@ -0,0 +1,9 @@
+package joke;
+
+import org.openjdk.jmh.annotations.Fork;
+
+// LoopbackBenchmark with JokeClient asking for compressed binary replies,
+// from a server that compressed its catalog when it was loaded.
+@Fork(value = 1, jvmArgsAppend = { "-Djoke.protocol=deflate", "-Djoke.deflate=true" })
+public class LoopbackDeflateBenchmark extends LoopbackBenchmark {
+}
@@ -0,0 +1,73 @@
+package joke;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Client lookup: finding a returning client's state by uuid, on its own
+// (ClientRegistry.getOrCreate) and together with taking the next item
+// (ClientStore.next) for the heap and off-heap stores. Every uuid is stored
+// in setup, so the measurement is of hits in a registry of the given size.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryBenchmark {
+  @Param({"heap", "offheap"})
+  String store;
+
+  @Param({"1000", "1000000"})
+  int clients;
+
+  ClientRegistry registry;
+  ClientStore clientStore;
+  int[] uuids;
+
+  @Setup
+  public void setup() {
+    registry = new ClientRegistry();
+    clientStore = store.equals("heap") ? registry
+      : new OffHeapClientStore(clients * 2, 4, false);
+    uuids = new int[clients];
+    java.util.Random random = new java.util.Random(1);
+    for (int i = 0; i < clients; i++) {
+      uuids[i] = random.nextInt();
+      registry.getOrCreate(uuids[i]);
+      clientStore.next(uuids[i], 0, 4);
+    }
+  }
+
+  // Each thread walks the uuids from its own starting point, so threads
+  // mostly hit different stripes or segments, as independent clients do.
+  @State(Scope.Thread)
+  public static class Cursor {
+    int next = (int) (Thread.currentThread().getId() * 7919 & Integer.MAX_VALUE);
+
+    int uuid(int[] uuids) {
+      next = (next + 1) % uuids.length;
+      return uuids[next];
+    }
+  }
+
+  @Benchmark
+  public Object lookup(Cursor cursor) {
+    return registry.getOrCreate(cursor.uuid(uuids));
+  }
+
+  @Benchmark
+  public int next(Cursor cursor) {
+    return clientStore.next(cursor.uuid(uuids), 0, 4);
+  }
+}
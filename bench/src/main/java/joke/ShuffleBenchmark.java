@@ -0,0 +1,44 @@
+package joke;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Next-label selection from a client's own ClientData, without the store
+// around it: advancing the shuffled cycle and computing the item at the
+// cursor (the Feistel permutation with cycle-walking). The largest count
+// shows that the cost does not grow with the catalog.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShuffleBenchmark {
+  @Param({"4", "1000", "400000"})
+  int count;
+
+  ClientData client = new ClientData(1);
+  int cursor;
+
+  @Benchmark
+  public int next() {
+    return ShuffleCycle.result(client.advance(0, count), count);
+  }
+
+  // The item at each cursor of one cycle in turn, without the ClientData.
+  @Benchmark
+  public int label() {
+    cursor = cursor + 1 < count ? cursor + 1 : 0;
+    return ShuffleCycle.label(0x9E3779B900000000L | cursor, count);
+  }
+}
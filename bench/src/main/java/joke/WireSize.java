@@ -0,0 +1,86 @@
+package joke;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+
+// Bytes on the wire per reply for the text protocol, the binary protocol
+// and compressed binary replies, counted by running the server's reply code
+// over a full cycle of every category into a stream that only counts. The
+// dictionary sent ahead of the first compressed reply is shown apart, since
+// a client fetches it once per catalog and keeps it. The generated catalog
+// repeats itself more than real jokes do, so it compresses better.
+//
+// > java -cp target/benchmarks.jar joke.WireSize [catalog file]
+public class WireSize {
+  static final int UUID = 123456789;
+  static final String NAME = "user";
+
+  public static void main(String[] args) throws IOException {
+    PrintStream report = System.out;
+    // Cycle completions go to JokeServer.log, whose thread writes them to
+    // stdout, so the report keeps the real stdout to itself
+    System.setOut(new PrintStream(new EncodeBenchmark.Discard()));
+    report.println("Requests: text " + (String.valueOf(UUID).length() + NAME.length() + 2)
+      + " bytes, binary " + (4 + BinaryProtocol.REQUEST_SIZE + NAME.length())
+      + " bytes (uuid " + UUID + ", name " + NAME + ")");
+    report.printf("%-24s %8s %8s %8s %8s %11s%n", "catalog", "items", "text", "binary",
+      "deflate", "dictionary");
+    measure(report, "built-in", Catalog.builtIn(false));
+    measure(report, "built-in, secondary", Catalog.builtIn(true));
+    File text = File.createTempFile("jokes", ".txt");
+    try {
+      EncodeBenchmark.generate(text, 100000);
+      measure(report, "generated", Catalog.load(text, false));
+    } finally {
+      text.delete();
+    }
+    if (args.length > 0) {
+      measure(report, new File(args[0]).getName(), Catalog.load(new File(args[0]), false));
+    }
+  }
+
+  // Prints the average reply size of each protocol over all items.
+  static void measure(PrintStream report, String name, Catalog catalog) throws IOException {
+    DeflatedCatalog deflated = new DeflatedCatalog(catalog, CatalogWatcher.DICTIONARY);
+    Counter counter = new Counter();
+    PrintStream out = new PrintStream(counter);
+    ByteBuffer header = ByteBuffer.allocate(BinaryProtocol.REPLY_HEADER);
+    long[] bytes = new long[3];
+    for (int c = 0; c < catalog.size(); c++) {
+      // A client of its own for each protocol, so each goes through the cycle
+      ClientStore[] clients = { new ClientRegistry(), new ClientRegistry(), new ClientRegistry() };
+      for (int i = 0; i < catalog.count(c); i++) {
+        long start = counter.count;
+        Worker.printJokeOrProverb(out, clients[0], UUID, catalog, c);
+        out.flush();
+        bytes[0] += counter.count - start;
+        start = counter.count;
+        BinaryProtocol.writeReply(counter, header, clients[1], UUID, catalog, null, c, 0);
+        bytes[1] += counter.count - start;
+        start = counter.count;
+        BinaryProtocol.writeReply(counter, header, clients[2], UUID, catalog, deflated, c, 0);
+        bytes[2] += counter.count - start;
+      }
+    }
+    double items = catalog.items();
+    report.printf("%-24s %8d %8.1f %8.1f %8.1f %11d%n", name, catalog.items(),
+      bytes[0] / items, bytes[1] / items, bytes[2] / items,
+      BinaryProtocol.REPLY_HEADER + deflated.dictionary.length);
+  }
+
+  // Counts the bytes written to it and drops them.
+  static final class Counter extends OutputStream {
+    long count;
+
+    public void write(int b) {
+      count++;
+    }
+
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}